@@ -17,7 +17,7 @@ getFollowers(): Best case time complexity: O(nlog(n)); Average case time complex
 All cases have the same time complexity because the method requires the followers to be ordered by dateFollowed and since we used the quick sort algorithm.
 
 getFollows(): Best case time complexity: O(nlog(n)); Average case time complexity: O(nlog(n)); Worst case time complexity: O(nlog(n)).
-This method is exactly the same as for the getFollowers() method except that we are retrieving the follows that the specified user has instead of the followers.
+This method is exactly the same as for the getFollowers() method except that we are retrieving the follows that the specified user has instead of the followers. Both methods return an empty array for a user that has never followed or been followed by anyone, instead of failing.
 
 isAFollower(): Best case time complexity: O(1) ; Average case time complexity: O(n) ; Worst case time complexity: O(n).
 The reasoning behind the addFollower() explanation of time complexities revolves around this function. The best case is when the follower and the followed are the first elements in the linkedlists of worshippers and worshipping, and worst case when they are the last elements.
@@ -76,12 +76,18 @@ public class FollowerStore implements IFollowerStore {
 	}
 
 	public int[] getFollowers(int uid) {
-    //Return an array of user ID's which have been sorted by date (latest follower first)
+    //Return an array of user ID's which have been sorted by date (latest follower first), or an empty array if the user has no followers
+		if (followermap.get(uid) == null) {
+			return new int[0];
+		}
 		return toArray(quickSortDate(followermap.get(uid).getWorshipperArray(), 0, followermap.get(uid).getWorshipperArray().length -1));
 	}
 
 	public int[] getFollows(int uid) {
-    //Return an array of user ID's which have been sorted by date (latest follow first)
+    //Return an array of user ID's which have been sorted by date (latest follow first), or an empty array if the user follows no one
+		if (followermap.get(uid) == null) {
+			return new int[0];
+		}
 		return toArray(quickSortDate(followermap.get(uid).getWorshippingArray(), 0, followermap.get(uid).getWorshippingArray().length -1));
 	}
 
@@ -1,26 +1,25 @@
 /**
-* Our UserStore is composed of a SortedArrayList which contains all users in Witter. The reason why I decided to settle with this data structure is because it allows elements to be inserted, modified or deleted from a particular position (by the use of indices) that other data structures may not be able to do. This is a crucial advantage as it allows us to retrieve a user from our array list quickly and in a simple manner without the need for extra methods to re-enter values into an array and output these out. Furthermore, read operations such as get() have a worst case time complexity of O(n) which means that we can essentially retrieve users efficiently. Write operations are usually very efficient with array lists as they have an average time complexity of 0(1) but there may be need of re-allocation and copy if the all slots of the array are full.
+* Our UserStore is composed of a SortedArrayList which contains all users in Witter. The array list stores the users column by column (an int array of IDs, a long array of join dates and an array of names) so that sorting, searching by date and looking up IDs only ever touch primitive arrays. No User objects are kept: a User and its Date are only created from the columns for the users a method returns. The store can be shared by many threads: writers (addUser() and addUsers()) are serialized by a StampedLock, while readers first read optimistically without taking any lock and only wait for the read lock if a writer changed the array list in the middle of their read. writeSnapshot() saves the columns, the ID index and the UTF-8 names to a binary file (written to a temporary file, forced to disk and renamed over the old snapshot, so a crash never leaves half a snapshot behind) and the UserStore(File) constructor memory maps it back in with bulk copies, so a restart does not have to add every user again. A snapshot that is shorter than its header says is rejected with an IOException. The reason why I decided to settle with this data structure is because it allows elements to be inserted, modified or deleted from a particular position (by the use of indices) that other data structures may not be able to do. This is a crucial advantage as it allows us to retrieve a user from our array list quickly and in a simple manner without the need for extra methods to re-enter values into an array and output these out. Furthermore, read operations such as get() have a worst case time complexity of O(n) which means that we can essentially retrieve users efficiently. Write operations are usually very efficient with array lists as they have an average time complexity of 0(1) but there may be need of re-allocation and copy if the all slots of the array are full.
 
-addUser() : Best case time complexity: O(1); Average case time complexity: O(1); Worst case time complexity: O(n). Best case  occurs when there is enough space within the array to add the user. Worst case occurs when there is not enough space within the array to add the user so a copy of the array must be made within a new array with a larger capacity. Average time is usually O(1) if you are willing to sacrifice memory space in creating a large enough array to make the worst case less likely to occur.
+addUser() : Best case time complexity: O(1); Average case time complexity: O(1); Worst case time complexity: O(n). Best case  occurs when there is enough space within the array to add the user and the user joined after everyone already stored, so it simply becomes the new head of the list. Worst case occurs when there is not enough space within the array to add the user so a copy of the array must be made within a new array with a larger capacity, or when the user joined before most other users so that the newer users have to be shifted by one slot (the slot itself is found by a binary search on the date joined, O(log(n))). Average time is usually O(1) as users normally sign up in date order.
 
-getUser(): Best case time complexity: O(1); Average case time complexity: O(n); Worst case time complexity: O(n).
-Best case occurs when the user we are trying to retrieve is the first element in our array list so the system only has to traverse 1 array position to get the user. The worst case occurs when the user is the last element in our array list so the system has to traverse the entire array list to get the user.
+addUsers(): Best case time complexity: O(n + mlog(m)); Average case time complexity: O(n + mlog(m)); Worst case time complexity: O(n + mlog(m)).
+Where m is the number of users in the batch. Duplicates are removed with one pass over the batch using a hash index, the batch is sorted once by date joined (in parallel for large batches) and then merged into the array list in a single linear pass, instead of running addUser() m times.
 
-getUsers(): Best case time complexity: O(nlog(n)); Average case time complexity: O(nlog(n)); Worst case time complexity: O(n^2).
-Best case, worst case and average case have the same time complexity because this method requires all users to be retrieved from the array list therefore there is no other choice but for the system to traverse the entire array list.
+getUser(): Best case time complexity: O(1); Average case time complexity: O(1); Worst case time complexity: O(n).
+The array list keeps an open addressing hash index from user ID to the position of the user in the array, so the user is found without traversing the array list. The worst case only occurs if many IDs collide in the index, which the multiplicative hash makes very unlikely. addUser() uses the same index to check whether the user already exists.
 
-getUsersContaining(): Best case time complexity: O(nlog(n)); Average case time complexity: O(nlog(n)); Worst case time complexity: O(n^2). 
-All cases' time complexities depend on the quick sort algorithm.
+getUsers(): Best case time complexity: O(n); Average case time complexity: O(n); Worst case time complexity: O(n).
+Best case, worst case and average case have the same time complexity because this method requires all users to be retrieved from the array list therefore there is no other choice but for the system to copy the entire array list. When only one page is needed, getUsers(offset, limit) copies just that page, and getUsersJoinedBefore(dateJoined, id, limit) returns the page after a cursor (the date joined and ID of the last user already seen) with a binary search, so the cursor stays valid even when new users are added in the meantime.
 
-getUsersJoinedBefore(): Best case time complexity: O(nlog(n)); Average case time complexity: O(nlog(n)); Worst case time complexity: O(n^2).
-Then again, best case, worst case and average cases have these time complexities because all users need to be sorted by date joined. I thought that by sorting the users by date joined, the best case time complexity could be improved to O(1), however the fact that we have to sort the users already means that we have to traverse the entire array list therefore the time complexity would be O(nlog(n)). 
+getUsersContaining(): Best case time complexity: O(1); Average case time complexity: O(klog(k)); Worst case time complexity: O(n).
+Every name is split into lower case trigrams (3 consecutive characters) when the user is added, and each trigram keeps a posting list of the IDs of the users whose name contains it. A query only has to intersect the posting lists of its own trigrams, verify the k candidates and sort their positions to put them back in date joined order. Best case occurs when one of the trigrams of the query is not in the index at all. Queries shorter than 3 characters cannot use the index, so they fall back to scanning the array list, which is the worst case.
 
-Moving on to the sort algorithm used throughout the entirety of Witter: QUICKSORT!
-I decided to implement the quick sort algorithms in UserStore, FollowerStore and WeetStore because it is an in-place sorting algorithm and therefore improves the overall cache performance.
-Quick sorts' time complexities in each case are as follows:
-Best case time complexity: O(nlog(n)); Average case time complexity: O(nlog(n)); Worst case time complexity: O(n^2).
-Worst case would occur when the array to sort contains the most unbalanced partitions possible. Best case would occur when the array to sort contains partitions which are evenly balanced therefore also having an odd number of elements (as this would mean that the pivot is in the middle after partitioning). Although the worst case time complexity is O(n^2), it is very very unlikely to occur and as such I believe it is fine to implement it for Witter.
-One thing to note from the way I have decided to sort the users is that I sort the array list everytime a user wants to be added (inputted) into it instead of sorting it everytime I want to output the array list. The idea behind this choice is that I have focused on what a real application would look like. If we consider a very large number of users being added into our data structure eg: 1000000, then sorting the array list is not such a bad idea as the time complexity would be greatly reduced when outputting data. If the data had to get sorted everytime a user wants to get all users in the array list, the time taken for this to occur would be incredibily high, whilst by sorting it at every addUser() we can output the array list just as it is when required. Furthermore, the fact that we already know that the output has to be sorted by date means that we can sort it from the very beginning as we are not going to be changing the order of the elements at any points.  
+getUsersJoinedBefore(): Best case time complexity: O(log(n)); Average case time complexity: O(log(n) + k); Worst case time complexity: O(n).
+Since the array list is always sorted by date joined, the first user that joined before the specified date can be found with a binary search, and every user after it joined before the date as well. The k matching users are then created from the columns in one pass. getUsersJoinedBetween() works the same way, with one binary search for each end of the range. 
+
+Moving on to how the users are kept sorted: BINARY SEARCH INSERTION!
+Instead of sorting the users whenever they have to be output, I keep the array list sorted everytime a user is added (inputted) into it. Users normally sign up in date order, so a new user is usually just placed in front of the head of the list in O(1). A user that joined before some of the users already stored is placed directly into its slot: a binary search on the date joined finds the slot in O(log(n)) and only the newer users are shifted by one slot, which is O(n) in the worst case but only moves the users after the slot. The idea behind this choice is that I have focused on what a real application would look like. If we consider a very large number of users being added into our data structure eg: 1000000, sorting the data everytime a user wants to get all users in the array list would take an incredibly long time, whilst by keeping it sorted at every addUser() we can output the array list just as it is when required. Furthermore, the fact that we already know that the output has to be sorted by date means that we can keep it sorted from the very beginning as we are not going to be changing the order of the elements at any point.
  *
  * @Credit to: Matt Leeke (lecture slides and labwork) and Parinthorn(Kate) Wiwatdirekkul as my lab partner.
  * @Adrian Cho: 1622228
@@ -30,140 +29,422 @@ package uk.ac.warwick.java.cs126.services;
 
 import uk.ac.warwick.java.cs126.models.User;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 
 public class UserStore implements IUserStore {
 
 	private SortedArrayList sortedArray;
+	private TrigramIndex trigrams;
+	//Writers hold the write lock one at a time; readers first try an optimistic read that takes no lock at all and only fall back to the read lock if a writer got in the way
+	private final StampedLock lock;
+
+	//Snapshot files start with these two ints so that any other file is rejected
+	private static final int SNAPSHOT_MAGIC = 0x57555352;
+	private static final int SNAPSHOT_VERSION = 1;
 
 	public UserStore() {
 
 		this.sortedArray = new SortedArrayList();
+		this.trigrams = new TrigramIndex();
+		this.lock = new StampedLock();
+	}
+
+	public UserStore(File snapshot) throws IOException {
+		//Reopens a snapshot written by writeSnapshot() by memory mapping the file; the columns are bulk copied out of the mapping and the names are only decoded when they are needed
+		ByteBuffer buffer;
+		try (RandomAccessFile file = new RandomAccessFile(snapshot, "r"); FileChannel channel = file.getChannel()) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.limit() < 16 || buffer.getInt(0) != SNAPSHOT_MAGIC || buffer.getInt(4) != SNAPSHOT_VERSION) {
+			throw new IOException(snapshot + " is not a UserStore snapshot");
+		}
+		//The header decides how long the columns and the index are, so a truncated or corrupt file is rejected before anything is copied out of it
+		int count = buffer.getInt(8);
+		int indexCapacity = buffer.getInt(12);
+		if (count < 0 || indexCapacity <= count || Integer.bitCount(indexCapacity) != 1 || buffer.limit() < 16 + count * 16L + indexCapacity * 8L) {
+			throw new IOException(snapshot + " is truncated or corrupt");
+		}
+		this.sortedArray = new SortedArrayList(buffer);
+		if (!sortedArray.namesComplete()) {
+			throw new IOException(snapshot + " is truncated or corrupt");
+		}
+		//Building the trigram index would mean decoding every name, so it is built the first time getUsersContaining() is called instead
+		this.trigrams = new TrigramIndex();
+		this.trigrams.complete = false;
+		this.lock = new StampedLock();
+	}
+
+	public void writeSnapshot(File snapshot) throws IOException {
+		//Writes the columns of the array list (latest user first), the ID index and the UTF-8 names to a file that the UserStore(File) constructor can map straight back in. The file is written next to the snapshot, forced to disk and then renamed over it, so a crash in the middle of writing never destroys the previous snapshot
+		File temp = new File(snapshot.getPath() + ".tmp");
+		long stamp = lock.readLock();
+		try (FileOutputStream file = new FileOutputStream(temp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+			sortedArray.writeTo(out);
+			out.flush();
+			file.getChannel().force(true);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private <T> T read(Supplier<T> reader) {
+		//Runs the reader without blocking and keeps its result if no writer started in the meantime
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				T result = reader.get();
+				if (lock.validate(stamp)) {
+					return result;
+				}
+			} catch (RuntimeException e) {
+				//A writer changed the arrays while we were reading them, so the read has to be repeated under the read lock
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return reader.get();
+		} finally {
+			lock.unlockRead(stamp);
+		}
 	}
 
 	public boolean addUser(User usr) {
-		//Checks whether the user already exists in the array list, if he/she exists then return without doing anything, otherwise add the new user
-		if (sortedArray.isEqual(usr.getId())) {
-			return false;
-		} else {
-			sortedArray.add(usr);
-			return true;
+
+		long stamp = lock.writeLock();
+		try {
+			//Checks whether the user already exists in the array list, if he/she exists then return without doing anything, otherwise add the new user
+			if (sortedArray.isEqual(usr.getId())) {
+				return false;
+			} else {
+				sortedArray.add(usr);
+				trigrams.add(usr.getId(), usr.getName());
+				return true;
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public int addUsers(User[] users) {
+		//Removes the users that appear twice in the batch with a single pass over the batch, remembering the IDs seen so far in a hash index
+		User[] batch = new User[users.length];
+		IdIndex seen = new IdIndex(users.length * 2);
+		int count = 0;
+		for (int i = 0; i < users.length; i++) {
+			User usr = users[i];
+			if (usr == null || seen.get(usr.getId()) >= 0) {
+				continue;
+			}
+			seen.put(usr.getId(), count);
+			batch[count] = usr;
+			count++;
+		}
+		//Sorts the batch once by date joined and ID (oldest first); parallelSort splits large batches across all cores and sorts small ones sequentially
+		Arrays.parallelSort(batch, 0, count, (a, b) -> {
+			int c = Long.compare(a.getDateJoined().getTime(), b.getDateJoined().getTime());
+			return c != 0 ? c : Integer.compare(a.getId(), b.getId());
+		});
+		//Reverse the batch so that it is newest first, which is the order the array list is kept in
+		for (int i = 0, j = count - 1; i < j; i++, j--) {
+			User temp = batch[i];
+			batch[i] = batch[j];
+			batch[j] = temp;
+		}
+		//Only the part that touches the array list is done while holding the write lock
+		long stamp = lock.writeLock();
+		try {
+			//Drops the users that already exist, keeping the rest of the batch in order
+			int added = 0;
+			for (int i = 0; i < count; i++) {
+				if (!sortedArray.isEqual(batch[i].getId())) {
+					batch[added] = batch[i];
+					added++;
+				}
+			}
+			sortedArray.addAll(batch, added);
+			int[] ids = new int[added];
+			String[] names = new String[added];
+			for (int i = 0; i < added; i++) {
+				ids[i] = batch[i].getId();
+				names[i] = batch[i].getName();
+			}
+			trigrams.addAll(ids, names, added);
+			return added;
+		} finally {
+			lock.unlockWrite(stamp);
 		}
 	}
 
 	public User getUser(int id) {
 		//returns the user with the specific id provided
-		return sortedArray.getId(id);
+		return read(() -> sortedArray.getId(id));
 	}
 
 	public User[] getUsers() {
 		//Creates an array of users containing everyone
-		User[] tempArray = new User[sortedArray.size()];
-		//iterates through the array list, storing each element in a slot in the array of users
-		for (int i = 0; i < sortedArray.size(); i++) {
-			if (sortedArray.get(i) != null) {
-				tempArray[i] = sortedArray.get(i);
-			}
-		}
-		return tempArray;
+		return read(() -> sortedArray.copyRange(0, sortedArray.size()));
 	}
 
-	public User[] getUsersContaining(String query) {
+	public User[] getUsers(int offset, int limit) {
+		//Returns one page of at most "limit" users (latest first), skipping the first "offset" users, without copying the rest of the array list
+		return read(() -> {
+			int start = (int) Math.min(Math.max(offset, 0), (long) sortedArray.size());
+			int end = (int) Math.min((long) start + Math.max(limit, 0), sortedArray.size());
+			return sortedArray.copyRange(start, end);
+		});
+	}
 
-		int count = 0;
-		//Iterates through the array list, incrementing a variable called count everytime it encounters a user whose name contains the specified query
-		for (int i = 0; i < sortedArray.size(); i++) {
+	public User[] getUsersJoinedBefore(Date dateJoined, int id, int limit) {
+		//Returns the next page of at most "limit" users after the cursor (the date joined and ID of the last user of the previous page)
+		//Users are ordered by date joined and then by ID (highest first), so the cursor still points to the same place in the list after new users are added
+		long date = dateJoined.getTime();
+		return read(() -> {
+			int start = sortedArray.firstBefore(date, id);
+			int end = (int) Math.min((long) start + Math.max(limit, 0), sortedArray.size());
+			return sortedArray.copyRange(start, end);
+		});
+	}
 
-			if (sortedArray.get(i).getName().toLowerCase().contains(query.toLowerCase())) {
-				count++;
-			}
+	private static boolean isNewer(long date1, int id1, long date2, int id2) {
+		//The order of the array list: latest date joined first, and the highest ID first for users that joined at the same time
+		return date1 > date2 || (date1 == date2 && id1 > id2);
+	}
+
+	public User[] getUsersContaining(String query) {
+		//Case folds the query once instead of lowercasing it (and every name) for each user
+		char[] folded = new char[query.length()];
+		for (int i = 0; i < folded.length; i++) {
+			folded[i] = Character.toLowerCase(query.charAt(i));
 		}
-		int index = 0;
-		//Creates an array of users with a size of "count" (the number of users whose name contains the specified query
-		User[] tempArray = new User[count];
-		//Iterates through the array list, storing each user whose name contains the specified query in a slot in the array of users
-		for (int j = 0; j < sortedArray.size(); j++) {
+		if (!trigrams.complete) {
+			buildTrigrams();
+		}
+		return read(() -> search(folded));
+	}
 
-			if (sortedArray.get(j).getName().toLowerCase().contains(query.toLowerCase())) {
-				tempArray[index] = sortedArray.get(j);
-				index++;
+	private void buildTrigrams() {
+		//Indexes every name of a store that was opened from a snapshot (users added since then are already in the index, and adding them twice does nothing)
+		long stamp = lock.writeLock();
+		try {
+			if (!trigrams.complete) {
+				int[] ids = new int[sortedArray.size()];
+				String[] names = new String[sortedArray.size()];
+				for (int i = 0; i < ids.length; i++) {
+					ids[i] = sortedArray.getUserId(i);
+					names[i] = sortedArray.getName(i);
+				}
+				trigrams.addAll(ids, names, ids.length);
+				trigrams.complete = true;
 			}
+		} finally {
+			lock.unlockWrite(stamp);
 		}
-		return tempArray;
 	}
 
-	public User[] getUsersJoinedBefore(Date dateBefore) {
-		//Iterates through the array list, incrementing a variable called count everytime it encounters a user that joined before the specified date
+	private User[] search(char[] folded) {
+		//Queries shorter than a trigram cannot use the index, so scan the array list (already in date joined order) without creating any strings
+		if (folded.length < 3) {
+			int count = 0;
+			User[] tempArray = new User[sortedArray.size()];
+			for (int i = 0; i < sortedArray.size(); i++) {
+				if (containsFolded(sortedArray.getName(i), folded)) {
+					tempArray[count] = sortedArray.get(i);
+					count++;
+				}
+			}
+			return Arrays.copyOf(tempArray, count);
+		}
+		//Intersect the posting lists of every trigram of the query to get the candidate users
+		int[] candidates = trigrams.candidates(folded);
+		//Verify each candidate (the trigrams may appear in the wrong order or apart in the name) and remember its position in the array list
 		int count = 0;
-
-		for (int i = 0; i < sortedArray.size(); i++) {
-
-			if (sortedArray.get(i).getDateJoined().before(dateBefore)) {
+		int[] positions = new int[candidates.length];
+		for (int i = 0; i < candidates.length; i++) {
+			int position = sortedArray.indexOf(candidates[i]);
+			if (containsFolded(sortedArray.getName(position), folded)) {
+				positions[count] = position;
 				count++;
 			}
 		}
-		int index = 0;
-		//Creates an array of users with a size of "count" (the number of users that joined before the specified date
+		//Sorting the positions puts the matching users back in date joined order (latest first)
+		Arrays.sort(positions, 0, count);
 		User[] tempArray = new User[count];
-		//Iterates through the array list, storing each user that joined before the specified date in a slot in the array of users
-		for (int j = 0; j < sortedArray.size(); j++) {
-
-			if (sortedArray.get(j).getDateJoined().before(dateBefore)) {
-				tempArray[index] = sortedArray.get(j);
-				index++;
-			}
+		for (int i = 0; i < count; i++) {
+			tempArray[i] = sortedArray.get(positions[i]);
 		}
 		return tempArray;
 	}
 
-	public void quickSort(User[] unsortedArray, int low, int high) {
-
-		int lo = low;
-		int hi = high;
-		if (low >= high) return;
-		Date mid = unsortedArray[(lo+hi) / 2].getDateJoined();
-
-		while (lo <= hi) {
-			//search for the first unordered pair of values within the array
-			while (lo <= hi && unsortedArray[lo].getDateJoined().after(mid)) {
-				lo++;
+	private static boolean containsFolded(String name, char[] folded) {
+		//Checks whether the name contains the (already lower case) query, lowercasing one character of the name at a time
+		int last = name.length() - folded.length;
+		for (int start = 0; start <= last; start++) {
+			int j = 0;
+			while (j < folded.length && Character.toLowerCase(name.charAt(start + j)) == folded[j]) {
+				j++;
 			}
-			while (lo <= hi && unsortedArray[hi].getDateJoined().before(mid)) {
-				hi--;
-			}
-			//swap the pair of values
-			if (lo <= hi) {
-				User temp = unsortedArray[lo];
-				unsortedArray[lo] = unsortedArray[hi];
-				unsortedArray[hi] = temp;
-				lo++;
-				hi--;
+			if (j == folded.length) {
+				return true;
 			}
 		}
+		return false;
+	}
 
-		//increment low and decrement hi to make sure that the while loops are able to run again after swapping
-		//call the function recursively until we are left with only 1 value left which should be in the correct place
+	public User[] getUsersJoinedBefore(Date dateBefore) {
+		//The array list is sorted by date joined (latest first), so the users that joined before the specified date are everyone from the first such user to the end
+		long date = dateBefore.getTime();
+		return read(() -> sortedArray.copyRange(sortedArray.firstJoinedBefore(date), sortedArray.size()));
+	}
 
-		if (low < hi) {
-		quickSort(unsortedArray, low, hi);
-		}
-		if (high > lo) {
-		quickSort(unsortedArray, lo, high);
-		}
+	public User[] getUsersJoinedBetween(Date from, Date to) {
+		//Returns the users that joined at or after "from" and before "to" (latest first)
+		return getUsersJoinedBetween(from, to, 0, Integer.MAX_VALUE);
 	}
 
-    private class SortedArrayList {
+	public User[] getUsersJoinedBetween(Date from, Date to, int offset, int limit) {
+		//Binary searches both ends of the range, then skips "offset" users and returns at most "limit" of the rest
+		long fromDate = from.getTime();
+		long toDate = to.getTime();
+		return read(() -> {
+			int start = sortedArray.firstJoinedBefore(toDate);
+			int end = sortedArray.firstJoinedBefore(fromDate);
+			if (offset > 0) {
+				start = (int) Math.min((long) start + offset, end);
+			}
+			if (end - start > Math.max(limit, 0)) {
+				end = start + Math.max(limit, 0);
+			}
+			return sortedArray.copyRange(start, end);
+		});
+	}
 
-		User[] userArray;
+    private class SortedArrayList {
+		//Users are stored column by column (struct of arrays) so that sorting, range searches and ID lookups only touch primitive arrays instead of following User and Date references
+		//The columns are kept right-aligned (newest first) so that a user newer than the head can be added in front of it without moving anybody
+		int[] ids;
+		long[] dates;
+		String[] names;
+		//Users loaded from a snapshot have no name String yet, only the offset of their UTF-8 name in the mapped snapshot (-1 for everyone else)
+		int[] nameRefs;
+		private ByteBuffer nameBlob;
 		private int capacity;
 		private int size;
+		private int head;
+		//Maps each user ID to the position of the user counted from the tail (oldest user) of the array, which does not change when users are added in front
+		private IdIndex index;
 
 		public SortedArrayList() {
 
 			this.capacity = 100;
-			this.userArray = new User[capacity];
+			this.ids = new int[capacity];
+			this.dates = new long[capacity];
+			this.names = new String[capacity];
+			this.nameRefs = new int[capacity];
 			this.size = 0;
+			this.head = capacity;
+			this.index = new IdIndex();
+		}
+
+		public SortedArrayList(ByteBuffer buffer) {
+			//Layout: magic, version, size, index capacity, then the dates, IDs, name offsets, index keys, index positions and finally the name blob
+			int count = buffer.getInt(8);
+			int indexCapacity = buffer.getInt(12);
+			this.size = count;
+			this.capacity = count + Math.max(100, count / 8);
+			this.head = capacity - count;
+			this.ids = new int[capacity];
+			this.dates = new long[capacity];
+			this.names = new String[capacity];
+			this.nameRefs = new int[capacity];
+			//Each section is read through its own view of the buffer, so the position of the mapped buffer itself never changes
+			ByteBuffer view = buffer.duplicate();
+			int position = 16;
+			view.position(position);
+			view.asLongBuffer().get(dates, head, count);
+			position += count * 8;
+			view.position(position);
+			view.asIntBuffer().get(ids, head, count);
+			position += count * 4;
+			view.position(position);
+			view.asIntBuffer().get(nameRefs, head, count);
+			position += count * 4;
+			int[] keys = new int[indexCapacity];
+			int[] values = new int[indexCapacity];
+			view.position(position);
+			view.asIntBuffer().get(keys);
+			position += indexCapacity * 4;
+			view.position(position);
+			view.asIntBuffer().get(values);
+			position += indexCapacity * 4;
+			this.index = new IdIndex(keys, values, count);
+			//The blob stays mapped; name offsets are relative to its start
+			view.position(position);
+			this.nameBlob = view.slice();
+		}
+
+		public boolean namesComplete() {
+			//The names were written in the order of their offsets, so the blob is complete if the name with the last offset fits inside it
+			if (size == 0) {
+				return true;
+			}
+			int offset = nameRefs[capacity - 1];
+			if (offset < 0 || offset + 4L > nameBlob.limit()) {
+				return false;
+			}
+			int length = nameBlob.getInt(offset);
+			return length >= 0 && offset + 4L + length <= nameBlob.limit();
+		}
+
+		public void writeTo(DataOutputStream out) throws IOException {
+			//Encodes every name once to know the offsets, then writes the sections in the order the snapshot constructor reads them
+			byte[][] encoded = new byte[size][];
+			int[] offsets = new int[size];
+			int blobSize = 0;
+			for (int i = 0; i < size; i++) {
+				encoded[i] = getName(i).getBytes(StandardCharsets.UTF_8);
+				offsets[i] = blobSize;
+				blobSize += 4 + encoded[i].length;
+			}
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(size);
+			out.writeInt(index.keys.length);
+			for (int i = head; i < capacity; i++) {
+				out.writeLong(dates[i]);
+			}
+			for (int i = head; i < capacity; i++) {
+				out.writeInt(ids[i]);
+			}
+			for (int i = 0; i < size; i++) {
+				out.writeInt(offsets[i]);
+			}
+			for (int i = 0; i < index.keys.length; i++) {
+				out.writeInt(index.keys[i]);
+			}
+			for (int i = 0; i < index.values.length; i++) {
+				out.writeInt(index.values[i]);
+			}
+			for (int i = 0; i < size; i++) {
+				out.writeInt(encoded[i].length);
+				out.write(encoded[i]);
+			}
 		}
 
 		public int size() {
@@ -171,55 +452,521 @@ public class UserStore implements IUserStore {
 			return size;
 		}
 
+		private void ensureFront(int count) {
+			//If there are not enough free slots in front of the head, transfer all the columns to the right end of arrays with (at least) double the capacity
+			if (head >= count) {
+				return;
+			}
+			int newCapacity = capacity * 2;
+			while (newCapacity - size < count) {
+				newCapacity *= 2;
+			}
+			int newHead = newCapacity - size;
+			int[] tempIds = new int[newCapacity];
+			long[] tempDates = new long[newCapacity];
+			String[] tempNames = new String[newCapacity];
+			int[] tempNameRefs = new int[newCapacity];
+			System.arraycopy(ids, head, tempIds, newHead, size);
+			System.arraycopy(dates, head, tempDates, newHead, size);
+			System.arraycopy(names, head, tempNames, newHead, size);
+			System.arraycopy(nameRefs, head, tempNameRefs, newHead, size);
+			ids = tempIds;
+			dates = tempDates;
+			names = tempNames;
+			nameRefs = tempNameRefs;
+			head = newHead;
+			capacity = newCapacity;
+		}
+
+		private void move(int from, int to, int length) {
+			//Moves a block of rows in every column at once
+			System.arraycopy(ids, from, ids, to, length);
+			System.arraycopy(dates, from, dates, to, length);
+			System.arraycopy(names, from, names, to, length);
+			System.arraycopy(nameRefs, from, nameRefs, to, length);
+		}
+
+		private void set(int i, User usr) {
+
+			ids[i] = usr.getId();
+			dates[i] = usr.getDateJoined().getTime();
+			names[i] = usr.getName();
+			nameRefs[i] = -1;
+		}
+
 		public boolean add(User usr) {
 
-			if (size < capacity) {
-			//Check if there is an available slot for the new user within the array
-				userArray[size] = usr;
-			//If there is, add the user and increment the size of the array by 1
+			ensureFront(1);
+			long date = usr.getDateJoined().getTime();
+			int id = usr.getId();
+			//Fast path: the new user comes before the current newest user, so it becomes the new head
+			if (size == 0 || isNewer(date, id, dates[head], ids[head])) {
+				head--;
+				set(head, usr);
+				index.put(ids[head], capacity - 1 - head);
 				size++;
-				quickSort(userArray, 0, (size - 1));
 				return true;
-			} else if (size >= capacity) {
-			//Otherwise, transfer all the users from the original array to a temporary array with a bigger capacity and add the user to the last slot
-				capacity *= 2;
-				User tempArray[] = new User[capacity];
-				for(int i = 0; i < size; i++) {
-					tempArray[i] = userArray[i];
-				}
-				tempArray[size] = usr;
-				size++;
-				userArray = tempArray;
-				quickSort(userArray, 0, (size - 1));
-				return true;
-			} else {
-				return false;
+			}
+			//Otherwise binary search for the first user that comes after the new user and shift the newer users one slot to the left
+			int pos = firstOlder(date, id);
+			move(head, head - 1, pos - head);
+			head--;
+			set(pos - 1, usr);
+			//Every user that was shifted moved one slot further away from the tail
+			for (int i = head; i < pos; i++) {
+				index.put(ids[i], capacity - 1 - i);
+			}
+			size++;
+			return true;
+		}
+
+		public void addAll(User[] batch, int count) {
+			//Merges a batch of new users (sorted newest first) into the array list in a single linear pass, filling the free slots in front of the head first
+			if (count == 0) {
+				return;
+			}
+			ensureFront(count);
+			int w = head - count;
+			int e = head;
+			int b = 0;
+			while (b < count) {
+				//The newer of the two candidates is written first
+				if (e == capacity || isNewer(batch[b].getDateJoined().getTime(), batch[b].getId(), dates[e], ids[e])) {
+					set(w, batch[b]);
+					b++;
+				} else {
+					ids[w] = ids[e];
+					dates[w] = dates[e];
+					names[w] = names[e];
+					nameRefs[w] = nameRefs[e];
+					e++;
+				}
+				w++;
+			}
+			head -= count;
+			size += count;
+			//Users from slot w onwards have not moved, everyone in front of it has to be (re-)indexed
+			for (int i = head; i < w; i++) {
+				index.put(ids[i], capacity - 1 - i);
 			}
 		}
 
+		private int firstOlder(long date, int id) {
+			//Returns the physical index of the first user (newest first) that comes after the specified date joined and ID in the order of the array list
+			int lo = head;
+			int hi = capacity;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (isNewer(dates[mid], ids[mid], date, id)) {
+					lo = mid + 1;
+				} else if (dates[mid] == date && ids[mid] == id) {
+					return mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		public int firstBefore(long date, int id) {
+			//Binary searches for the position (latest user first) of the first user after the specified date joined and ID, or size if there is none
+			return firstOlder(date, id) - head;
+		}
+
+		public int firstJoinedBefore(long date) {
+			//Binary searches for the position (latest user first) of the first user that joined strictly before the specified date, or size if there is none
+			//No user comes after the smallest possible ID on the same date, so only earlier dates are counted
+			return firstOlder(date, Integer.MIN_VALUE) - head;
+		}
+
+		public User[] copyRange(int from, int to) {
+			//Creates the users between positions from (inclusive) and to (exclusive) from the columns
+			if (to <= from) {
+				return new User[0];
+			}
+			User[] tempArray = new User[to - from];
+			for (int i = 0; i < tempArray.length; i++) {
+				tempArray[i] = get(from + i);
+			}
+			return tempArray;
+		}
+
+		public int indexOf(int id) {
+			//Returns the position of the user with the specified ID counted from the head (latest user first), or -1 if the user does not exist
+			int slot = index.get(id);
+			if (slot < 0) {
+				return -1;
+			}
+			return size - 1 - slot;
+		}
+
 		public User getId(int id) {
-			//Iterate through the array of users to retrieve the user with the specified ID
-			for (int i = 0; i < size; i++) {
-				if (userArray[i].getId() == id) {
-					return userArray[i];
+			//Look up the position of the user with the specified ID in the index
+			int i = indexOf(id);
+			if (i < 0) {
+				return null;
+			}
+			return get(i);
+		}
+
+		public int getUserId(int i) {
+
+			return ids[head + i];
+		}
+
+		public String getName(int i) {
+			//Names loaded from a snapshot are decoded from the mapped file every time they are needed, so reading them never writes to the array list
+			String name = names[head + i];
+			if (name == null) {
+				int offset = nameRefs[head + i];
+				byte[] bytes = new byte[nameBlob.getInt(offset)];
+				for (int j = 0; j < bytes.length; j++) {
+					bytes[j] = nameBlob.get(offset + 4 + j);
 				}
+				name = new String(bytes, StandardCharsets.UTF_8);
 			}
-			return null;
+			return name;
 		}
 
 		public User get(int i) {
-			//returns the array of users
-			return userArray[i];
+			//returns the i-th newest user, created from the columns
+			return new User(getName(i), ids[head + i], new Date(dates[head + i]));
 		}
 
 		public boolean isEqual(int id) {
-			//Iterates through the array of users to check whether the user with the specified ID exists
-			for (int i = 0; i < size; i++) {
-				if (userArray[i].getId() == id) {
-					return true;
+			//Checks the index to see whether the user with the specified ID exists
+			return index.get(id) >= 0;
+		}
+	}
+
+	private class IdIndex {
+		//Open addressing hash table with linear probing from a primitive user ID to a primitive position, so no Integer objects are ever created
+		private int[] keys;
+		private int[] values;
+		private int size;
+		private int mask;
+
+		public IdIndex() {
+
+			this(128);
+		}
+
+		public IdIndex(int[] keys, int[] values, int size) {
+			//Wraps a table that was saved in a snapshot
+			this.keys = keys;
+			this.values = values;
+			this.mask = keys.length - 1;
+			this.size = size;
+		}
+
+		public IdIndex(int capacity) {
+			//The capacity is rounded up to a power of two so that the hash can be reduced with a mask instead of a mod
+			int cap = 1;
+			while (cap < capacity) {
+				cap <<= 1;
+			}
+			keys = new int[cap];
+			values = new int[cap];
+			for (int i = 0; i < cap; i++) {
+				values[i] = -1;
+			}
+			mask = cap - 1;
+			size = 0;
+		}
+
+		private int hash(int key) {
+			//Multiplicative hashing spreads consecutive IDs over the whole table (and works for negative IDs)
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		public int get(int key) {
+			//Returns the position stored for the specified ID, or -1 if the ID is not in the index
+			//The arrays are read once and the probe never goes round the table more than once, so an optimistic reader racing with a resize always terminates
+			int[] k = keys;
+			int[] v = values;
+			int m = k.length - 1;
+			int i = hash(key) & m;
+			for (int probes = 0; probes <= m && v[i] >= 0; probes++) {
+				if (k[i] == key) {
+					return v[i];
+				}
+				i = (i + 1) & m;
+			}
+			return -1;
+		}
+
+		public void put(int key, int value) {
+			//Inserts the ID or overwrites its position if it is already in the index
+			int i = hash(key) & mask;
+			while (values[i] >= 0) {
+				if (keys[i] == key) {
+					values[i] = value;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = value;
+			size++;
+			//Keep the table at most half full so that probe sequences stay short
+			if (size * 2 > keys.length) {
+				resize();
+			}
+		}
+
+		private void resize() {
+
+			int[] oldKeys = keys;
+			int[] oldValues = values;
+			int cap = oldKeys.length * 2;
+			keys = new int[cap];
+			values = new int[cap];
+			for (int i = 0; i < cap; i++) {
+				values[i] = -1;
+			}
+			mask = cap - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] >= 0) {
+					int j = hash(oldKeys[i]) & mask;
+					while (values[j] >= 0) {
+						j = (j + 1) & mask;
+					}
+					keys[j] = oldKeys[i];
+					values[j] = oldValues[i];
+				}
+			}
+		}
+
+		public int size() {
+
+			return size;
+		}
+	}
+
+	private class TrigramIndex {
+		//Open addressing hash table from a trigram (3 lower case characters packed into a long) to the posting list of the users whose name contains it
+		private long[] keys;
+		private PostingList[] lists;
+		private int size;
+		private int mask;
+		//False while the index does not yet contain every user (after opening a snapshot)
+		volatile boolean complete = true;
+
+		public TrigramIndex() {
+
+			keys = new long[1024];
+			lists = new PostingList[1024];
+			mask = keys.length - 1;
+			size = 0;
+		}
+
+		private long trigram(char a, char b, char c) {
+
+			return ((long) a << 32) | ((long) b << 16) | c;
+		}
+
+		private int hash(long key) {
+
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h >>> 32);
+		}
+
+		public void add(int id, String name) {
+			//Adds the user ID to the posting list of every trigram of the name, lowercasing one character at a time
+			if (name.length() < 3) {
+				return;
+			}
+			char a = Character.toLowerCase(name.charAt(0));
+			char b = Character.toLowerCase(name.charAt(1));
+			for (int i = 2; i < name.length(); i++) {
+				char c = Character.toLowerCase(name.charAt(i));
+				getOrCreate(trigram(a, b, c)).add(id);
+				a = b;
+				b = c;
+			}
+		}
+
+		public void addAll(int[] ids, String[] names, int count) {
+			//Adds many names at once: the users are visited in ascending ID order so that every trigram collects its new IDs already sorted, and each posting list is then merged with them in a single pass instead of one insertion per user
+			long[] order = new long[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = ((long) ids[i] << 32) | i;
+			}
+			Arrays.parallelSort(order);
+			TrigramIndex pending = new TrigramIndex();
+			for (int i = 0; i < count; i++) {
+				int j = (int) order[i];
+				pending.add(ids[j], names[j]);
+			}
+			for (int i = 0; i < pending.keys.length; i++) {
+				if (pending.lists[i] != null) {
+					getOrCreate(pending.keys[i]).merge(pending.lists[i]);
+				}
+			}
+		}
+
+		public PostingList get(long key) {
+			//Like IdIndex.get(), the arrays are read once and the probe is bounded so that optimistic readers always terminate
+			long[] k = keys;
+			PostingList[] l = lists;
+			int m = k.length - 1;
+			int i = hash(key) & m;
+			for (int probes = 0; probes <= m && l[i] != null; probes++) {
+				if (k[i] == key) {
+					return l[i];
+				}
+				i = (i + 1) & m;
+			}
+			return null;
+		}
+
+		private PostingList getOrCreate(long key) {
+
+			int i = hash(key) & mask;
+			while (lists[i] != null) {
+				if (keys[i] == key) {
+					return lists[i];
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			lists[i] = new PostingList();
+			size++;
+			PostingList list = lists[i];
+			if (size * 2 > keys.length) {
+				resize();
+			}
+			return list;
+		}
+
+		private void resize() {
+
+			long[] oldKeys = keys;
+			PostingList[] oldLists = lists;
+			keys = new long[oldKeys.length * 2];
+			lists = new PostingList[oldKeys.length * 2];
+			mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldLists[i] != null) {
+					int j = hash(oldKeys[i]) & mask;
+					while (lists[j] != null) {
+						j = (j + 1) & mask;
+					}
+					keys[j] = oldKeys[i];
+					lists[j] = oldLists[i];
+				}
+			}
+		}
+
+		public int[] candidates(char[] folded) {
+			//Looks up the posting list of every trigram of the (already lower case) query; if any trigram is missing no user can match
+			int n = folded.length - 2;
+			PostingList[] found = new PostingList[n];
+			for (int i = 0; i < n; i++) {
+				found[i] = get(trigram(folded[i], folded[i + 1], folded[i + 2]));
+				if (found[i] == null) {
+					return new int[0];
+				}
+			}
+			//Intersect the shortest posting lists first so that the intermediate result stays as small as possible
+			for (int i = 1; i < n; i++) {
+				PostingList temp = found[i];
+				int j = i - 1;
+				while (j >= 0 && found[j].size() > temp.size()) {
+					found[j + 1] = found[j];
+					j--;
+				}
+				found[j + 1] = temp;
+			}
+			int[] result = Arrays.copyOf(found[0].ids, found[0].size());
+			int count = result.length;
+			for (int i = 1; i < n && count > 0; i++) {
+				count = found[i].intersect(result, count);
+			}
+			return Arrays.copyOf(result, count);
+		}
+	}
+
+	private class PostingList {
+		//Growable array of user IDs kept in ascending order so that two posting lists can be intersected with a single merge
+		int[] ids;
+		private int size;
+
+		public PostingList() {
+
+			ids = new int[4];
+			size = 0;
+		}
+
+		public int size() {
+
+			return size;
+		}
+
+		public void add(int id) {
+			//IDs usually arrive in ascending order, so they are normally appended; otherwise binary search for the slot (and ignore an ID that is already there)
+			int pos = size;
+			if (size > 0 && ids[size - 1] >= id) {
+				pos = Arrays.binarySearch(ids, 0, size, id);
+				if (pos >= 0) {
+					return;
+				}
+				pos = -(pos + 1);
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+			ids[pos] = id;
+			size++;
+		}
+
+		public void merge(PostingList other) {
+			//Merges another posting list into this one with a single linear pass, keeping every ID only once
+			if (other.size == 0) {
+				return;
+			}
+			int[] merged = new int[size + other.size];
+			int i = 0;
+			int j = 0;
+			int k = 0;
+			while (i < size || j < other.size) {
+				int next;
+				if (j == other.size || (i < size && ids[i] <= other.ids[j])) {
+					next = ids[i];
+					i++;
+				} else {
+					next = other.ids[j];
+					j++;
+				}
+				if (k == 0 || merged[k - 1] != next) {
+					merged[k] = next;
+					k++;
+				}
+			}
+			ids = merged;
+			size = k;
+		}
+
+		public int intersect(int[] result, int count) {
+			//Keeps only the first count IDs of result (sorted ascending) that are also in this posting list and returns how many are left
+			int i = 0;
+			int j = 0;
+			int k = 0;
+			while (i < count && j < size) {
+				if (result[i] == ids[j]) {
+					result[k] = result[i];
+					k++;
+					i++;
+					j++;
+				} else if (result[i] < ids[j]) {
+					i++;
+				} else {
+					j++;
 				}
 			}
-			return false;
+			return k;
 		}
 	}
-}
+}
\ No newline at end of file
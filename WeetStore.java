@@ -1,25 +1,39 @@
 /**
-* Our WeetStore is based on a hybrid structure between the FollowerStore data structure and the UserStore data structure. WeetStore revolves around creating a HashMap with its corresponding KeyValuePairLinkedLists and WeetLinkedList and also creating two separate array lists (one for the array of weets and the other for an array of strings containing the most frequent topics). The advantages of each individual data structure are explained separately in the UserStore and FollowerStore files. The disadvantage however of using two data structures is that the memory space will be doubled. On the other hand, we gain greater speed and efficiency as we are able to access specific indices that we otherwise would not be able to if we were just using a HashMap.
+* Our WeetStore is based on a hybrid structure between the FollowerStore data structure and the UserStore data structure. WeetStore revolves around creating a HashMap with its corresponding KeyValuePairLinkedLists and a sorted array list of weets for each user and also creating two separate array lists (one for the array of weets and the other for an array of strings containing the most frequent topics). The advantages of each individual data structure are explained separately in the UserStore and FollowerStore files. The disadvantage however of using two data structures is that the memory space will be doubled. On the other hand, we gain greater speed and efficiency as we are able to access specific indices that we otherwise would not be able to if we were just using a HashMap. The HashMap starts with 16 buckets, only creates a bucket when a user is hashed into it and doubles its number of buckets whenever it holds more than 3 users for every 4 buckets, so it grows with the number of users instead of allocating a fixed prime number of buckets up front.
 
 addWeet(): Best case time complexity: O(1); Average case time complexity: O(n); Worst case time complexity: O(n).
 As I am adding a user to both a HashMap and an array list, the best case can be achieved as O(1) as the HashMap will generate a unique ID through hashing the user ID to get a key, and the array list will have enough space to not have to re-allocate and copy the array list to add another user. Worst case on the other hand would be O(n) as if the array list was full, we would have to re-allocate and copy over all the elements in the list to a new array list with a greater capacity.
+addWeets() adds a batch of b weets in O(n + blog(b)): duplicates are removed with one pass over a hash table, the messages are scanned in parallel, the batch is sorted by date once and merged into the array list in a single pass (instead of a binary search and shift for every late weet), and the other structures are updated from the oldest weet to the latest, so every insert there is usually an append.
+WeetStore(directory) also keeps the weets on disk: every new weet is appended to a log file (its length, a checksum, the IDs, the date and the UTF-8 message) before it is added, and the log is forced to disk once for a group of weets instead of once per weet. Every record is handed to the operating system before addWeet() returns, so a weet that has been added survives the JVM being killed; surviving a crash of the whole machine waits for the group commit, which happens after at most groupSize weets or flushMillis milliseconds (200 by default, done by a background thread, so a quiet store still gets its last weets onto disk), whichever comes first. sync() forces the log straight away. addWeets() logs its whole batch and forces it with a single fsync before adding any of it, and if writing or forcing it fails the batch is cut off the log again, so a batch that was refused does not come back on recovery. In the same way, when the fsync of a full group fails inside addWeet(), only that call's weet is cut off the log and refused; the weets acknowledged earlier in the group are already added and stay in the log. Once a write to the log has failed, every later write fails too. When the store is opened again the last checkpoint and then the log are read back in large batches with addWeets(), stopping at a record of the log that was only half written (a bad record in the checkpoint, which is only renamed into place once it is complete, is reported as an IOException instead). Once the log holds as many weets as the store, all weets are written to a new checkpoint and the log is emptied, so a recovery never has to read much more than the store itself.
+archive(threshold) moves the weets created before the threshold off the heap into a segment file that is memory mapped and never changed again: a table of fixed width records sorted by date, a table sorted by weet ID, a table sorted by user ID, the posting list of every trigram of the archived messages (taken off the front of the posting lists of the text index, which are dropped from the heap), how often each topic was used in total and in every minute, and the UTF-8 messages. Opening the store only maps the segments and adds their topic counts to the counters, so no archived message is read again and the heap does not grow with the archived weets. getWeet() binary searches the ID table of each segment after the WeetIndex, and the other methods binary search the segments for their range of records (by user, by day or by date) and merge them with the weets on the heap latest first, so a weet is only read out of a segment when it is returned.
 
-getWeet(): Best case time complexity: O(n); Average case time complexity: O(n); Worst case time complexity: O(n).
-We have to iterate through the array list containing the weets to store them in an array of weets and then once finished iterate through that array of weets to look for the weet with the specified weet ID. The improved version would just simply take the weet ID directly from our array list of weets and compared it with the specified weet ID.
+getWeet(): Best case time complexity: O(1); Average case time complexity: O(1); Worst case time complexity: O(n).
+The whole row of every weet on the heap (its user ID, date and where its message is in the arena) is also stored in an open addressing hash table keyed by the weet ID (WeetIndex), so the weet is built straight from one probe instead of traversing or searching the array list. The best case is a weet ID that is not in the table, and the worst case only happens if many weet IDs collide in the table. addWeet() uses the same table to check that the weet has not been added before, instead of searching the weet list of the user.
  
-Now before we move on,  the rest of the methods' time complexities all depend on the quick sort algorithm. The specification for WeetStore asked for data sorted by recency (most recent first) for all methods, except for getTrending() method which was by frequency (most frequent first) but since I also used quick sort for this method the time complexities will be the same.
+Now before we move on, the specification for WeetStore asked for data sorted by recency (most recent first) for all methods, except for getTrending() method which was by frequency (most frequent first). Instead of quick sorting the output of every method, the array list of weets is kept sorted by date as weets are added: weets normally arrive in date order so they are simply appended, and a weet that arrives late is placed with a binary search. Every method below can therefore read the weets out in order. No Weet objects are kept at all: every array list stores the date, weet ID and user ID of its weets in primitive columns (a long array and two int arrays), so binary searches, merges and scans only read those arrays, together with where the UTF-8 bytes of each message are in a message arena. A Weet, its Date and the String of its message are only created for the weets a method returns, so a message takes its UTF-8 bytes on the heap once instead of a String per weet.
  
-getWeets(): Best case time complexity: O(nlog(n)); Average case time complexity: O(nlog(n)); Worst case time complexity: O(n^2).
+getWeets(): Best case time complexity: O(n); Average case time complexity: O(n); Worst case time complexity: O(n).
+All weets are copied out of the sorted array list. getWeets(offset, limit) only copies one page.
 
-getWeetsByUser(): Best case time complexity: O(nlog(n)); Average case time complexity: O(nlog(n)); Worst case time complexity: O(n^2).
+getWeetsByUser(): Best case time complexity: O(k); Average case time complexity: O(k); Worst case time complexity: O(k).
+Where k is the number of weets of the user. Each user in the HashMap keeps his/her weets in an array list sorted by date (a weet is appended, or binary searched into place if it arrives late), so the weets are simply copied out latest first. getWeetsByUser(usr, limit) only copies the latest "limit" weets.
 
-getWeetsContaining(): Best case time complexity: O(nlog(n)); Average case time complexity: O(nlog(n)); Worst case time complexity: O(n^2).
+getWeetsContaining(): Best case time complexity: O(1); Average case time complexity: O(k); Worst case time complexity: O(n).
+Every message is split into lower case trigrams (3 consecutive characters) when the weet is added, and each trigram keeps a posting list of the weets containing it, sorted by date like the array list. A query walks the posting lists of its own trigrams together from the latest weet backwards, so the k weets that are in all of them come out already sorted, and getWeetsContaining(query, limit) can stop as soon as it has found "limit" of them. Each candidate is still checked against its message because the trigrams might be in a different order. The UTF-8 bytes of every message on the heap are kept in an arena of large byte arrays (the array lists know where each one is), so candidates are checked and short queries (fewer than 3 characters, which fall back to scanning every weet latest first, the worst case) are scanned over bytes, folding ASCII letters as they are read, without touching a String or making a lower case copy. Only a message with characters outside ASCII that did not match is checked again character by character. Each segment keeps the posting lists of its own weets in a table sorted by trigram, so the posting lists of the heap and of every segment are walked the same way side by side, and the latest candidate of all of them is checked next. Archived weets are searched in the bytes of their segment in the same way and are only read out when they are returned.
 
-getWeetsOn(): Best case time complexity: O(nlog(n)); Average case time complexity: O(nlog(n)); Worst case time complexity: O(n^2).
+getWeetsOn(): Best case time complexity: O(1); Average case time complexity: O(k); Worst case time complexity: O(k).
+Where k is the number of weets created on that day. A second HashMap (reusing the same class as the users) has a bucket for every calendar day, keyed by the number of days since 1 January 1970 in the time zone given to the constructor (the default time zone otherwise). Each bucket is an array list sorted by date, so the weets of the day are copied out latest first. getWeetsBetween(from, to) walks the buckets of the days in the range from the last one back, and only binary searches the first and the last day because they can be partly outside the range.
 
-getWeetsBefore(): Best case time complexity: O(nlog(n)); Average case time complexity: O(nlog(n)); Worst case time complexity: O(n^2).
+getWeetsBefore(): Best case time complexity: O(log(n)); Average case time complexity: O(log(n) + k); Worst case time complexity: O(n).
+A binary search finds how many weets were created before the date and those k weets are copied out. getWeetsBefore(dateBefore, wid, limit) returns the page after a cursor (the date and ID of the last weet already seen) the same way, so the cursor stays valid while new weets are added.
 
-getTrending(): Best case time complexity: O(nlog(n)); Average case time complexity: O(nlog(n); Worst case time complexity: O(n^2).
+getTimeline(): Best case time complexity: O(K); Average case time complexity: O(Klog(n) + limit*log(K)); Worst case time complexity: O(Klog(n) + limit*log(K)).
+Where K is the number of runs of weets of the users that the user follows (one on the heap and one in each segment for every followee, found through the FollowerStore given to setFollowerStore()). Every run is already sorted by date, so each one is cut at the cursor with a binary search and the runs are put in a binary max-heap ordered by their latest weet. The latest weet of the top run is taken out and that run moves down the heap, "limit" times, so the weets of the followees are never concatenated and sorted as a whole. getTimeline(uid, limit, dateBefore, wid) returns the page after a cursor like getWeetsBefore().
+
+getTrending(): Best case time complexity: O(1); Average case time complexity: O(1); Worst case time complexity: O(Klog(K)).
+Where K is 10. The topics are counted as weets are added. A message is read only once, one character at a time: each character is lowercased as it is read and feeds both the trigrams of the text index and the topic being built up in a reusable array, so no lower case copy of the message, regular expression or String is created for a topic that has been seen before. The topics are counted in an open addressing hash table from the topic to its CountStringPair, so adding a topic is O(1) on average instead of comparing it with every other topic. The 10 most frequent topics are kept in an indexed min-heap (every CountStringPair knows its position in the heap), so a count that goes up only moves that topic in the heap, in O(log(K)). getTrending() sorts the K topics of the heap and keeps the result until the heap changes, so it is nearly free when called repeatedly.
+getTrending(window) only counts the weets created within the window before the latest weet. Every topic that is found is also counted in a ring of per-minute buckets (the last 7 days), where each bucket is a small hash table from a topic to how often it was used in that minute, and each of the 8 windows asked for most recently keeps its own counters in a stream summary (asking for a ninth window length replaces the one that was asked for least recently, so adding a topic never updates more than 8 windows): a linked list of buckets of topics with the same count, so a count goes up (when a topic is added) in O(1) or down by its count for the minute that leaves the window, and the top 10 are read from the highest bucket in O(K). Old minutes are taken off the counters as the latest weet moves forward, so the weets never have to be scanned again. The first call for a new window builds its counters from the ring. When a store is opened, the ring gets the counts of the last 7 days of archived minutes straight from the minute tables of the segments.
+WeetStore(timeZone, epsilon, delta) counts the topics for getTrending() approximately instead, so one-off topics do not stay in memory forever. A Count-Min Sketch (a few rows of counters, each topic hashed to one counter per row) estimates the count of any topic, and a Space-Saving summary (the same stream summary, limited to 1/epsilon topics, where a new topic replaces the least frequent one) remembers which topics are frequent. Both can only overestimate, so the topics are ranked by the smaller of the two estimates. The memory used depends only on epsilon and delta: such a store does not keep the per-minute ring, so getTrending(window) throws an IllegalStateException.
  
  * @Credit to: Matt Leeke (lecture slides and labwork) and Parinthorn(Kate) Wiwatdirekkul as my lab partner.
  * @Adrian Cho: 1622228
@@ -31,317 +45,2544 @@ import uk.ac.warwick.java.cs126.models.User;
 import uk.ac.warwick.java.cs126.models.Weet;
 
 import java.io.BufferedReader;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.TimeZone;
+import java.time.Duration;
+import java.util.stream.IntStream;
 import java.io.FileReader;
 import java.text.ParseException;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
 public class WeetStore implements IWeetStore {
 
 	private HashMap Weetmap;
 	private SortedArrayList arrayWeet;
-	private StringArrayList arrayTrending;
+	private MessageArena arena;
+	private TopicTable topics;
+	private TrendingHeap trendingHeap;
+	private RecentTopics recentTopics;
+	private ApproximateTopics approximateTopics;
+	private ScannedMessage scanned;
+	//getTrending(window) can look back at most 7 days
+	private static final int MAX_WINDOW_MINUTES = 7 * 24 * 60;
+	//At most this many window lengths keep their own counters for getTrending(window)
+	private static final int MAX_WINDOWS = 8;
+	private WeetIndex weetIndex;
+	private TrigramIndex textIndex;
+	private HashMap dayMap;
+	private TimeZone timeZone;
+	//The follower store that getTimeline() asks for the users someone follows
+	private IFollowerStore followerStore;
+	//The write-ahead log of a store opened on a directory, or null if the store only lives in memory
+	private WeetLog log;
+	//The memory mapped segments of archived weets, oldest segment first
+	private Segment[] segments;
+	private int segmentCount;
+	private static final int SEGMENT_MAGIC = 0x57534547;
+	private static final int SEGMENT_VERSION = 2;
+
+	//Checkpoint files start with these two ints so that any other file is rejected
+	private static final int CHECKPOINT_MAGIC = 0x57575452;
+	private static final int CHECKPOINT_VERSION = 1;
+	//A checkpoint is written once the log holds at least this many weets and at least as many weets as the store
+	private static final int CHECKPOINT_MIN_RECORDS = 100000;
+	//Weets are read back from the checkpoint and the log in batches of this many and added with addWeets()
+	private static final int REPLAY_BATCH = 65536;
+	//By default weets that have been logged are forced to disk at most this many milliseconds later, even if their group is not full
+	private static final long LOG_FLUSH_MILLIS = 200;
 
 	public WeetStore() {
 
-		Weetmap = new HashMap(387031);
-		arrayWeet = new SortedArrayList();
-		arrayTrending = new StringArrayList();
+		this(TimeZone.getDefault());
 	}
 
-	public boolean addWeet(Weet weet) {
-		//Checks if our HashMap contains the user that wrote the weet, if he/she does not exist add him/her to the HashMap
-		if (!Weetmap.contains(weet.getUserId())) {
-			Weetmap.add(weet.getUserId());
+	public WeetStore(File directory) throws IOException {
+
+		this(directory, TimeZone.getDefault(), 64);
+	}
+
+	public WeetStore(File directory, TimeZone timeZone, int groupSize) throws IOException {
+
+		this(directory, timeZone, groupSize, LOG_FLUSH_MILLIS);
+	}
+
+	public WeetStore(File directory, TimeZone timeZone, int groupSize, long flushMillis) throws IOException {
+		//Recovers the weets saved in the directory (the last checkpoint, then every complete record of the log after it) and then logs every new weet, forcing the log to disk once every "groupSize" weets or every "flushMillis" milliseconds, whichever comes first
+		this(timeZone);
+		if (flushMillis <= 0) {
+			throw new IllegalArgumentException("flushMillis must be positive");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		loadSegments(directory);
+		File checkpoint = new File(directory, "weets.checkpoint");
+		if (checkpoint.exists()) {
+			replay(checkpoint, true);
+		}
+		File logFile = new File(directory, "weets.log");
+		long valid = logFile.exists() ? replay(logFile, false) : 0;
+		log = new WeetLog(directory, logFile, valid, Math.max(1, groupSize), flushMillis);
+	}
+
+	public WeetStore(TimeZone timeZone, double epsilon, double delta) {
+		//Counts the topics for getTrending() approximately in a fixed amount of memory: the count of a topic is overestimated by more than epsilon times the number of topics added with a probability of at most delta
+		this(timeZone);
+		if (!(epsilon > 0 && epsilon < 1 && delta > 0 && delta < 1)) {
+			throw new IllegalArgumentException("epsilon and delta must be between 0 and 1");
 		}
-		//Checks if the user that wrote the weet already contains a weet with the same weet ID, if not then add the weet to his weet list
-		if (!Weetmap.get(weet.getUserId()).contains(weet.getId())) {
-			Weetmap.get(weet.getUserId()).add(weet);
-			arrayWeet.add(weet);
-			//Finds all trends within a string and outputs it to our stringArrayList
-			Pattern trend = Pattern.compile("#[A-Za-z0-9-_]+");
-			Matcher match = trend.matcher(weet.getMessage().toLowerCase());
+		topics = null;
+		trendingHeap = null;
+		//The per-minute ring would hold every topic used in the last 7 days, so windows are only counted by exact stores
+		recentTopics = null;
+		approximateTopics = new ApproximateTopics(epsilon, delta);
+	}
 
-			while (match.find()) {
-				String topic = match.group();
+	public WeetStore(TimeZone timeZone) {
+		//The time zone decides which calendar day a weet belongs to in getWeetsOn() and getWeetsBetween()
+		this.timeZone = timeZone;
+		Weetmap = new HashMap();
+		arrayWeet = new SortedArrayList(100);
+		arena = new MessageArena();
+		topics = new TopicTable();
+		trendingHeap = new TrendingHeap(10);
+		recentTopics = new RecentTopics();
+		weetIndex = new WeetIndex();
+		textIndex = new TrigramIndex();
+		scanned = new ScannedMessage();
+		dayMap = new HashMap();
+		segments = new Segment[4];
+		segmentCount = 0;
+	}
 
-				CountStringPair x = new CountStringPair(topic);
-				arrayTrending.add(x);
+	public boolean addWeet(Weet weet) {
+		//Checks the weet ID index (and the segments) to make sure that no weet is added twice
+		if (!contains(weet.getId())) {
+			//The weet is written to the log before it is added, and is not added at all if the log cannot be written
+			if (log != null) {
+				try {
+					log.append(weet);
+				} catch (IOException e) {
+					return false;
+				}
 			}
+			//Only the UTF-8 bytes of the message are kept (in the arena), so the Weet and its String can be thrown away once the weet is added
+			int length = utf8Length(weet.getMessage());
+			long message = arena.add(weet.getMessage(), length);
+			arrayWeet.insert(weet, message, length);
+			//One pass over the message finds its trigrams and topics, which are then added to the text index and the topic counters
+			scanned.scan(weet);
+			store(scanned, message, length);
+			checkpointIfNeeded();
 			return true;
 		} else return false;
 	}
 
-	public Weet getWeet(int wid) {
-		//Iterates through the array LIST of weets and store each element in a NORMAL array of weets
-		try {
-			Weet[] weetArray = new Weet[arrayWeet.size()];
+	public int addWeets(Weet[] weets) {
+		//Adds a batch of weets and returns how many of them were new. The messages are scanned in parallel, the batch is sorted by date once and merged into the array list in one pass, and the other structures are then updated from the oldest weet of the batch to the latest
+		WeetIndex batch = new WeetIndex();
+		Weet[] added = new Weet[weets.length];
+		int count = 0;
+		//One hash pass removes the weets that are already stored or appear twice in the batch (the first one is kept, like addWeet() would)
+		for (int i = 0; i < weets.length; i++) {
+			if (batch.find(weets[i].getId()) < 0 && !contains(weets[i].getId())) {
+				batch.put(weets[i].getId(), weets[i].getUserId(), weets[i].getDateWeeted().getTime(), 0, 0);
+				added[count] = weets[i];
+				count++;
+			}
+		}
+		Weet[] sorted = Arrays.copyOf(added, count);
+		Arrays.parallelSort(sorted, (a, b) -> isNewer(a, b) ? 1 : (isNewer(b, a) ? -1 : 0));
+		//The whole batch is logged and forced to disk once before any of it is added
+		if (log != null && count > 0) {
+			try {
+				log.append(sorted, count);
+			} catch (IOException e) {
+				return 0;
+			}
+		}
+		//Scanning a message only reads the weet, so the messages are scanned on the common fork/join pool
+		ScannedMessage[] scans = new ScannedMessage[count];
+		IntStream.range(0, count).parallel().forEach(i -> {
+			scans[i] = new ScannedMessage();
+			scans[i].scan(sorted[i]);
+		});
+		long[] messages = new long[count];
+		int[] lengths = new int[count];
+		for (int i = 0; i < count; i++) {
+			lengths[i] = utf8Length(sorted[i].getMessage());
+			messages[i] = arena.add(sorted[i].getMessage(), lengths[i]);
+		}
+		arrayWeet.insertAll(sorted, messages, lengths);
+		for (int i = 0; i < count; i++) {
+			store(scans[i], messages[i], lengths[i]);
+		}
+		checkpointIfNeeded();
+		return count;
+	}
+
+	public void sync() throws IOException {
+		//Forces the weets logged since the last group commit to disk
+		if (log != null) {
+			log.commit();
+		}
+	}
 
+	public void checkpoint() throws IOException {
+		//Writes every weet to a new checkpoint file, which replaces the old one in a single rename, and then empties the log. If the store stops between the two, the weets of the log are simply found again in the checkpoint and ignored as duplicates
+		if (log == null) {
+			return;
+		}
+		log.commit();
+		File temp = new File(log.directory, "weets.checkpoint.tmp");
+		try (FileOutputStream file = new FileOutputStream(temp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeInt(CHECKPOINT_VERSION);
+			CRC32 crc = new CRC32();
+			//The records are written straight from the columns and the UTF-8 bytes in the arena, without creating the weets
 			for (int i = 0; i < arrayWeet.size(); i++) {
-				weetArray[i] = arrayWeet.get(i);
+				long message = arrayWeet.messages[i];
+				writeRecord(out, arrayWeet.ids[i], arrayWeet.uids[i], arrayWeet.times[i], arena.chunk(message), (int) message, arrayWeet.lengths[i], crc);
+			}
+			out.flush();
+			file.getChannel().force(true);
+		}
+		Files.move(temp.toPath(), new File(log.directory, "weets.checkpoint").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log.truncate();
+	}
+
+	public void close() throws IOException {
+		//Forces the log to disk and closes it; the store can still be read afterwards but no longer logs new weets
+		if (log != null) {
+			log.close();
+			log = null;
+		}
+	}
+
+	private void checkpointIfNeeded() {
+		//Bounds the time a recovery takes: the log never grows much longer than the store itself, so writing the checkpoint costs O(1) per weet on average. If the checkpoint fails the log still holds every weet, so it is tried again later
+		if (log != null && log.records >= Math.max(CHECKPOINT_MIN_RECORDS, arrayWeet.size())) {
+			try {
+				checkpoint();
+			} catch (IOException e) {
+				log.records = 0;
 			}
-			//Checks if any of the weets stored in our array of weets contains the same ID as the specified ID, if there is, return it; otherwise return null
-			for (int i = 0; i < weetArray.length; i++) {
-				if (weetArray[i].getId() == wid) {
-					return weetArray[i];
+		}
+	}
+
+	private long replay(File file, boolean checkpoint) throws IOException {
+		//Reads the records of a checkpoint or of the log and adds them in batches with addWeets(), and returns the length of the valid part of the file. Reading the log stops at the first record that is incomplete or does not match its checksum (the end of a log that was being written when the store stopped). A checkpoint is only ever renamed into place once it is complete, so a bad record there means the file is corrupt, and it is reported instead of silently losing every weet after it
+		long length = file.length();
+		long valid = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (checkpoint) {
+				if (length < 8 || in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION) {
+					throw new IOException(file + " is not a WeetStore checkpoint");
 				}
+				valid = 8;
 			}
-		} catch (Exception E) {
-			return null;
+			Weet[] batch = new Weet[REPLAY_BATCH];
+			int count = 0;
+			byte[] payload = new byte[256];
+			CRC32 crc = new CRC32();
+			while (valid + 8 <= length) {
+				int size = in.readInt();
+				int checksum = in.readInt();
+				if (size < 16 || size > length - valid - 8) {
+					if (checkpoint) {
+						throw new IOException(file + " is corrupt at byte " + valid);
+					}
+					break;
+				}
+				if (payload.length < size) {
+					payload = new byte[Math.max(size, payload.length * 2)];
+				}
+				in.readFully(payload, 0, size);
+				crc.reset();
+				crc.update(payload, 0, size);
+				if ((int) crc.getValue() != checksum) {
+					if (checkpoint) {
+						throw new IOException(file + " is corrupt at byte " + valid);
+					}
+					break;
+				}
+				ByteBuffer record = ByteBuffer.wrap(payload, 0, size);
+				int id = record.getInt();
+				int uid = record.getInt();
+				long time = record.getLong();
+				batch[count] = new Weet(id, uid, new String(payload, 16, size - 16, StandardCharsets.UTF_8), new Date(time));
+				count++;
+				if (count == batch.length) {
+					addWeets(batch);
+					count = 0;
+				}
+				valid += 8 + size;
+			}
+			if (checkpoint && valid != length) {
+				throw new IOException(file + " is corrupt at byte " + valid);
+			}
+			addWeets(Arrays.copyOf(batch, count));
 		}
-		return null;
+		return valid;
 	}
 
-	public Weet[] getWeets() {
-		//Stores all weets within our data structure into the slots of our array of weets
-		Weet[] tempArray = new Weet[arrayWeet.size()];
+	private static int writeRecord(DataOutputStream out, Weet weet, CRC32 crc) throws IOException {
+
+		byte[] message = weet.getMessage().getBytes(StandardCharsets.UTF_8);
+		return writeRecord(out, weet.getId(), weet.getUserId(), weet.getDateWeeted().getTime(), message, 0, message.length, crc);
+	}
+
+	private static int writeRecord(DataOutputStream out, int id, int uid, long time, byte[] message, int offset, int length, CRC32 crc) throws IOException {
+		//A record is its length and checksum followed by the weet ID, user ID, date and the UTF-8 bytes of the message; returns the number of bytes written
+		ByteBuffer header = ByteBuffer.allocate(16);
+		header.putInt(id);
+		header.putInt(uid);
+		header.putLong(time);
+		crc.reset();
+		crc.update(header.array(), 0, 16);
+		crc.update(message, offset, length);
+		out.writeInt(16 + length);
+		out.writeInt((int) crc.getValue());
+		out.write(header.array(), 0, 16);
+		out.write(message, offset, length);
+		return 24 + length;
+	}
+
+	private void store(ScannedMessage scanned, long message, int length) {
+		//Adds a scanned weet (whose message is at that location in the arena) to every structure except the array list of all weets
+		Weet weet = scanned.weet;
+		//Checks if our HashMap contains the user that wrote the weet, if he/she does not exist add him/her to the HashMap
+		if (!Weetmap.contains(weet.getUserId())) {
+			Weetmap.add(weet.getUserId());
+		}
+		weetIndex.put(weet.getId(), weet.getUserId(), weet.getDateWeeted().getTime(), message, length);
+		Weetmap.get(weet.getUserId()).insert(weet, message, length);
+		//Adds the weet to the bucket of the day it was created on
+		int day = epochDay(weet.getDateWeeted().getTime());
+		if (!dayMap.contains(day)) {
+			dayMap.add(day);
+		}
+		dayMap.get(day).insert(weet, message, length);
+		index(scanned);
+	}
 
-		for (int i = 0; i < arrayWeet.size(); i++) {
-			if (arrayWeet.get(i) != null) {
-				tempArray[i] = arrayWeet.get(i);
+	public Weet getWeet(int wid) {
+		//Builds the weet from its row in the weet ID index, or else looks in the ID table of every segment, which returns null if there is no weet with the specified ID
+		Weet weet = null;
+		int slot = weetIndex.find(wid);
+		if (slot >= 0) {
+			weet = new Weet(wid, weetIndex.uids[slot], arena.string(weetIndex.messages[slot], weetIndex.lengths[slot]), new Date(weetIndex.times[slot]));
+		}
+		for (int i = 0; i < segmentCount && weet == null; i++) {
+			int record = segments[i].find(wid);
+			if (record >= 0) {
+				weet = segments[i].get(record);
+			}
+		}
+		return weet;
+	}
+
+	private boolean contains(int wid) {
+		//Same as getWeet(wid) != null, without reading the message of an archived weet
+		if (weetIndex.find(wid) >= 0) {
+			return true;
+		}
+		for (int i = 0; i < segmentCount; i++) {
+			if (segments[i].find(wid) >= 0) {
+				return true;
 			}
 		}
-		//Sort the whole array of weets by the frequency of each one (most frequent first)
-		return quickSort(tempArray, 0, tempArray.length -1);
+		return false;
+	}
+
+	public Weet[] getWeets() {
+		//The array list and the segments are already sorted by date, so all weets are merged out latest first without sorting
+		return getWeets(0, Integer.MAX_VALUE);
+	}
+
+	public Weet[] getWeets(int offset, int limit) {
+		//Returns one page of at most "limit" weets (latest first), skipping the first "offset" weets
+		Run[] runs = new Run[segmentCount + 1];
+		runs[0] = new Run(arrayWeet, 0, arrayWeet.size());
+		for (int i = 0; i < segmentCount; i++) {
+			runs[i + 1] = new Run(segments[i], 0, segments[i].size(), false);
+		}
+		return merge(runs, offset, limit);
 	}
 
 	public Weet[] getWeetsByUser(User usr) {
 
+		return getWeetsByUser(usr, Integer.MAX_VALUE);
+	}
+
+	public Weet[] getWeetsByUser(User usr, int limit) {
+		//The weets of every user are kept sorted by date in the HashMap, so the latest "limit" weets are copied straight out of the user's array list (merged with the weets of the user in each segment)
+		SortedArrayList weets = Weetmap.get(usr.getId());
+		Run[] runs = new Run[segmentCount + 1];
+		runs[0] = (weets == null) ? new Run(arrayWeet, 0, 0) : new Run(weets, 0, weets.size());
+		for (int i = 0; i < segmentCount; i++) {
+			runs[i + 1] = new Run(segments[i], segments[i].userStart(usr.getId()), segments[i].userStart(usr.getId() + 1L), true);
+		}
+		return merge(runs, 0, limit);
+	}
+
+	private static boolean isNewer(Weet a, Weet b) {
+		//The recency order used everywhere in WeetStore: latest date first, and the highest weet ID first for weets posted at the same time
+		long dateA = a.getDateWeeted().getTime();
+		long dateB = b.getDateWeeted().getTime();
+		return dateA > dateB || (dateA == dateB && a.getId() > b.getId());
+	}
+
+	public Weet[] getWeetsContaining(String query) {
+
+		return getWeetsContaining(query, Integer.MAX_VALUE);
+	}
+
+	public Weet[] getWeetsContaining(String text, int limit) {
+		//Returns (at most) the "limit" latest weets whose message contains the text, ignoring case
+		char[] folded = new char[text.length()];
+		for (int i = 0; i < folded.length; i++) {
+			folded[i] = Character.toLowerCase(text.charAt(i));
+		}
+		int max = Math.max(limit, 0);
+		byte[] query = new String(folded).getBytes(StandardCharsets.UTF_8);
+		//Queries shorter than a trigram cannot use the index, so the bytes of the messages are scanned latest first and a weet is only read out of a segment if it matches
+		if (folded.length < 3) {
+			Run[] runs = new Run[segmentCount + 1];
+			runs[0] = new Run(arrayWeet, 0, arrayWeet.size());
+			int total = arrayWeet.size();
+			for (int i = 0; i < segmentCount; i++) {
+				runs[i + 1] = new Run(segments[i], 0, segments[i].size(), false);
+				total += segments[i].size();
+			}
+			Weet[] tempArray = new Weet[Math.min(max, total)];
+			int count = 0;
+			//Without segments the array list is scanned directly
+			if (segmentCount == 0) {
+				for (int i = arrayWeet.size() - 1; i >= 0 && count < max; i--) {
+					if (arrayWeet.matches(i, query, folded) == 1) {
+						tempArray[count] = arrayWeet.weet(i);
+						count++;
+					}
+				}
+				return Arrays.copyOf(tempArray, count);
+			}
+			for (int r = newest(runs); r >= 0 && count < max; r = newest(runs)) {
+				runs[r].hi--;
+				if (runs[r].matches(runs[r].hi, query, folded)) {
+					tempArray[count] = runs[r].weet(runs[r].hi);
+					count++;
+				}
+			}
+			return Arrays.copyOf(tempArray, count);
+		}
+		//Every weet containing the query is in the posting list of each trigram of the query, either in the text index of the heap or in the trigram table of the segment it was archived to. Each of them is intersected on its own, latest weet first, and the latest candidate of all of them is taken each time
+		Intersection[] sources = new Intersection[segmentCount + 1];
+		int sourceCount = 0;
+		int total = 0;
+		for (int j = -1; j < segmentCount; j++) {
+			PostingList[] lists = (j < 0) ? textIndex.lists(folded) : segments[j].lists(folded);
+			if (lists != null) {
+				Intersection source = new Intersection(lists, j);
+				total += lists[0].size();
+				if (source.next()) {
+					sources[sourceCount] = source;
+					sourceCount++;
+				}
+			}
+		}
+		Weet[] tempArray = new Weet[Math.min(max, total)];
 		int count = 0;
-		//Checks if size of our array LIST of weets is empty, if it is then return and empty array of weets
-		if (arrayWeet.size() == 0) {
-			Weet[] empty = new Weet[0];
-			return empty;
-		}
-		//Iterates through our array LIST of weets and increments a variable called "count" everytime a weet with the same specified weet ID is encountered
-		for (int i = 0; i < arrayWeet.size(); i++) {
-			if (arrayWeet.get(i).getUserId() == usr.getId()) {
+		while (sourceCount > 0 && count < max) {
+			int latest = 0;
+			for (int j = 1; j < sourceCount; j++) {
+				if (sources[j].date > sources[latest].date || (sources[j].date == sources[latest].date && sources[j].id > sources[latest].id)) {
+					latest = j;
+				}
+			}
+			Intersection source = sources[latest];
+			//A candidate has every trigram of the query, but they may be in a different order, so the bytes of the message are checked before the weet is returned
+			Weet weet = verify(source, query, folded);
+			if (weet != null) {
+				tempArray[count] = weet;
 				count++;
 			}
+			if (!source.next()) {
+				sourceCount--;
+				sources[latest] = sources[sourceCount];
+			}
+		}
+		return Arrays.copyOf(tempArray, count);
+	}
+
+	private Weet verify(Intersection source, byte[] query, char[] folded) {
+		//Finds the candidate with a binary search in the array list or in the segment its posting lists came from, and returns it only if its message contains the query
+		if (source.segment < 0) {
+			int i = arrayWeet.countBefore(source.date, source.id);
+			return arrayWeet.matches(i, query, folded) == 1 ? arrayWeet.weet(i) : null;
 		}
+		Segment segment = segments[source.segment];
+		int record = segment.countBefore(source.date, source.id);
+		return segment.matches(record, query, folded) == 1 ? segment.get(record) : null;
+	}
 
-		int index = 0;
-		//Creates an array of weets of size "count", the number of weets with the same weet ID as the specifed weet ID
-		Weet[] tempArray = new Weet[count];
-		//Iterates through our array LIST of weets and store each weet with the same weet ID as the specified weet ID into our array of weets
-		for (int j = 0; j < arrayWeet.size(); j++) {
-			if (arrayWeet.get(j).getUserId() == usr.getId()) {
-				tempArray[index] = arrayWeet.get(j);
-				index++;
+	private static int contains(byte[] buffer, int offset, int length, byte[] query) {
+		//Case insensitive search of the lower case UTF-8 bytes of a query in a message, folding the ASCII letters of the message as they are read. Returns 1 if the message contains the query and 0 if it does not; if it does not and the message has a byte outside ASCII (a character whose lower case could still match), returns -1 so that the caller checks the characters instead
+		if (query.length == 0) {
+			return 1;
+		}
+		int end = offset + length;
+		int last = end - query.length;
+		byte first = query[0];
+		boolean ascii = true;
+		for (int start = offset; start <= last; start++) {
+			byte b = buffer[start];
+			if (b < 0) {
+				ascii = false;
+			} else if (b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			if (b == first) {
+				int j = 1;
+				while (j < query.length) {
+					byte c = buffer[start + j];
+					if (c >= 'A' && c <= 'Z') {
+						c += 'a' - 'A';
+					}
+					if (c != query[j]) {
+						break;
+					}
+					j++;
+				}
+				if (j == query.length) {
+					return 1;
+				}
 			}
 		}
-		//Sort the array of weets by the frequency of the each one (most frequent first)
-		return quickSort(tempArray, 0, tempArray.length -1);
+		//The last few bytes were never the start of a match, so they are checked for characters outside ASCII separately
+		for (int i = Math.max(last + 1, offset); i < end && ascii; i++) {
+			ascii = buffer[i] >= 0;
+		}
+		return ascii ? 0 : -1;
 	}
 
-	public Weet[] getWeetsContaining(String query) {
-		//Same concept as getWeetsByUser() method however, store the weets that contain the specified query rather than the ones with a specified weet ID
-		int count = 0;
+	private static int utf8Length(String message) {
+		//The number of bytes of the message in UTF-8 (a character that is half of a surrogate pair on its own is written as "?", like String.getBytes() does)
+		int length = 0;
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < message.length() && Character.isLowSurrogate(message.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
 
-		for (int i = 0; i < arrayWeet.size(); i++) {
-			if (arrayWeet.get(i).getMessage().toLowerCase().contains(query.toLowerCase())) {
-				count++;
+	private static boolean containsFolded(String message, char[] folded) {
+		//Checks whether the message contains the (already lower case) query, lowercasing one character of the message at a time
+		int last = message.length() - folded.length;
+		for (int start = 0; start <= last; start++) {
+			int j = 0;
+			while (j < folded.length && Character.toLowerCase(message.charAt(start + j)) == folded[j]) {
+				j++;
+			}
+			if (j == folded.length) {
+				return true;
 			}
 		}
-		int index = 0;
+		return false;
+	}
+
+	public Weet[] getWeetsOn(Date dateOn) {
+		//Every weet is added to the bucket of the calendar day it was created on, and each bucket is sorted by date, so the bucket is copied out latest first (merged with the weets of that day in each segment)
+		int day = epochDay(dateOn.getTime());
+		SortedArrayList bucket = dayMap.get(day);
+		Run[] runs = new Run[segmentCount + 1];
+		runs[0] = (bucket == null) ? new Run(arrayWeet, 0, 0) : new Run(bucket, 0, bucket.size());
+		for (int i = 0; i < segmentCount; i++) {
+			runs[i + 1] = new Run(segments[i], segments[i].firstOnDay(day), segments[i].firstOnDay(day + 1), false);
+		}
+		return merge(runs, 0, Integer.MAX_VALUE);
+	}
 
+	public Weet[] getWeetsBetween(Date from, Date to) {
+		//Returns the weets created from "from" (inclusive) up to "to" (exclusive), latest first, by walking the day buckets from the last day back to the first
+		long start = from.getTime();
+		long end = to.getTime();
+		if (start >= end) {
+			return new Weet[0];
+		}
+		int firstDay = epochDay(start);
+		int lastDay = epochDay(end - 1);
+		//Only the first and the last day can be partly outside the range, so they are the only buckets that need a binary search
+		int count = 0;
+		for (int day = lastDay; day >= firstDay; day--) {
+			SortedArrayList bucket = dayMap.get(day);
+			if (bucket != null) {
+				count += bucketEnd(bucket, day, lastDay, end) - bucketStart(bucket, day, firstDay, start);
+			}
+		}
 		Weet[] tempArray = new Weet[count];
+		int index = 0;
+		for (int day = lastDay; day >= firstDay; day--) {
+			SortedArrayList bucket = dayMap.get(day);
+			if (bucket != null) {
+				int hi = bucketEnd(bucket, day, lastDay, end);
+				int n = hi - bucketStart(bucket, day, firstDay, start);
+				bucket.copyDescending(hi, n, tempArray, index);
+				index += n;
+			}
+		}
+		if (segmentCount == 0) {
+			return tempArray;
+		}
+		Run[] runs = new Run[segmentCount + 1];
+		runs[0] = new Run(tempArray);
+		for (int i = 0; i < segmentCount; i++) {
+			runs[i + 1] = new Run(segments[i], segments[i].countBefore(start, Integer.MIN_VALUE), segments[i].countBefore(end, Integer.MIN_VALUE), false);
+		}
+		return merge(runs, 0, Integer.MAX_VALUE);
+	}
 
-		for (int j = 0; j < arrayWeet.size(); j++) {
+	private int bucketStart(SortedArrayList bucket, int day, int firstDay, long start) {
 
-			if (arrayWeet.get(j).getMessage().toLowerCase().contains(query.toLowerCase())) {
-				tempArray[index] = arrayWeet.get(j);
-				index++;
+		return day == firstDay ? bucket.countBefore(start, Integer.MIN_VALUE) : 0;
+	}
+
+	private int bucketEnd(SortedArrayList bucket, int day, int lastDay, long end) {
+
+		return day == lastDay ? bucket.countBefore(end, Integer.MIN_VALUE) : bucket.size();
+	}
+
+	private int epochDay(long time) {
+		//The number of whole days since 1 January 1970 in the time zone of the store (the offset includes daylight saving time)
+		return (int) Math.floorDiv(time + timeZone.getOffset(time), 86400000L);
+	}
+
+	public Weet[] getWeetsBefore(Date dateBefore) {
+		//The array list and the segments are sorted by date, so the weets created before the specified date are found with a binary search in each of them and merged out latest first
+		return getWeetsBefore(dateBefore, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	public Weet[] getWeetsBefore(Date dateBefore, int wid, int limit) {
+		//Returns the next page of at most "limit" weets after the cursor (the date and weet ID of the last weet of the previous page), latest first
+		long date = dateBefore.getTime();
+		Run[] runs = new Run[segmentCount + 1];
+		runs[0] = new Run(arrayWeet, 0, arrayWeet.countBefore(date, wid));
+		for (int i = 0; i < segmentCount; i++) {
+			runs[i + 1] = new Run(segments[i], 0, segments[i].countBefore(date, wid), false);
+		}
+		return merge(runs, 0, limit);
+	}
+
+	public void setFollowerStore(IFollowerStore followerStore) {
+
+		this.followerStore = followerStore;
+	}
+
+	public Weet[] getTimeline(int uid, int limit) {
+
+		return getTimeline(uid, limit, new Date(Long.MAX_VALUE), Integer.MAX_VALUE);
+	}
+
+	public Weet[] getTimeline(int uid, int limit, Date dateBefore) {
+
+		return getTimeline(uid, limit, dateBefore, Integer.MIN_VALUE);
+	}
+
+	public Weet[] getTimeline(int uid, int limit, Date dateBefore, int wid) {
+		//Returns the home timeline of a user: at most "limit" weets of the users he/she follows that come before the cursor (the date and weet ID of the last weet already seen), latest first
+		if (followerStore == null) {
+			throw new IllegalStateException("getTimeline() needs a FollowerStore, see setFollowerStore()");
+		}
+		long date = dateBefore.getTime();
+		int[] follows = followerStore.getFollows(uid);
+		//Every followee has one run of weets on the heap and one in each segment, each cut at the cursor with a binary search
+		RunHeap heap = new RunHeap(follows.length * (segmentCount + 1));
+		for (int i = 0; i < follows.length; i++) {
+			SortedArrayList weets = Weetmap.get(follows[i]);
+			if (weets != null) {
+				heap.add(new Run(weets, 0, weets.countBefore(date, wid)));
 			}
+			for (int j = 0; j < segmentCount; j++) {
+				Run run = new Run(segments[j], segments[j].userStart(follows[i]), segments[j].userStart(follows[i] + 1L), true);
+				run.cutBefore(date, wid);
+				heap.add(run);
+			}
+		}
+		heap.build();
+		//Only the "limit" weets that are returned are taken off the heap, so the runs are never copied or merged as a whole
+		Weet[] tempArray = new Weet[(int) Math.min(Math.max(limit, 0), heap.total())];
+		for (int i = 0; i < tempArray.length; i++) {
+			tempArray[i] = heap.next();
 		}
-		return quickSort(tempArray, 0, tempArray.length -1);
+		return tempArray;
 	}
 
-	public Weet[] getWeetsOn(Date dateOn) {
-		//Same concept as getWeetsContaining() method however, store the weets that were created on the specified date rather than the ones containing a specified query
-		int count = 0;
+	private Weet[] merge(Run[] runs, int offset, int limit) {
+		//Merges runs of weets that are each sorted by date into one array, latest first, skipping the first "offset" weets and returning at most "limit". Only the weets that are returned are read from the segments
+		int total = 0;
+		for (int i = 0; i < runs.length; i++) {
+			total += runs[i].hi - runs[i].lo;
+		}
+		int skip = Math.min(Math.max(offset, 0), total);
+		Weet[] tempArray = new Weet[Math.min(Math.max(limit, 0), total - skip)];
+		//With a single run (no segments) the page is copied straight out of it
+		if (runs.length == 1 && runs[0].list != null) {
+			runs[0].list.copyDescending(runs[0].hi - skip, tempArray.length, tempArray, 0);
+			return tempArray;
+		}
+		for (int i = 0; i < skip; i++) {
+			runs[newest(runs)].hi--;
+		}
+		for (int i = 0; i < tempArray.length; i++) {
+			int r = newest(runs);
+			runs[r].hi--;
+			tempArray[i] = runs[r].weet(runs[r].hi);
+		}
+		return tempArray;
+	}
+
+	private int newest(Run[] runs) {
+		//Returns the run whose last weet is the latest of all the runs, or -1 if every run is empty
+		int best = -1;
+		long bestDate = 0;
+		int bestId = 0;
+		for (int i = 0; i < runs.length; i++) {
+			Run run = runs[i];
+			if (run.hi > run.lo) {
+				long date = run.date(run.hi - 1);
+				int id = run.id(run.hi - 1);
+				if (best < 0 || date > bestDate || (date == bestDate && id > bestId)) {
+					best = i;
+					bestDate = date;
+					bestId = id;
+				}
+			}
+		}
+		return best;
+	}
+
+	public int archive(Date threshold) throws IOException {
+		//Moves every weet created before the threshold off the heap into a new segment file, which is memory mapped and never changed again, and returns how many weets were moved. Only a store opened on a directory can archive weets
+		if (log == null) {
+			throw new IllegalStateException("Only a WeetStore opened on a directory can archive weets");
+		}
+		long time = threshold.getTime();
+		int count = arrayWeet.countBefore(time, Integer.MIN_VALUE);
+		if (count == 0) {
+			return 0;
+		}
+		Weet[] archived = new Weet[count];
+		for (int i = 0; i < count; i++) {
+			archived[i] = arrayWeet.weet(i);
+		}
+		long[] archivedTimes = Arrays.copyOf(arrayWeet.times, count);
+		int[] archivedIds = Arrays.copyOf(arrayWeet.ids, count);
+		int[] archivedUids = Arrays.copyOf(arrayWeet.uids, count);
+		long[] archivedMessages = Arrays.copyOf(arrayWeet.messages, count);
+		int number = segmentCount == 0 ? 0 : segments[segmentCount - 1].number + 1;
+		File file = new File(log.directory, "weets.segment." + number);
+		File temp = new File(log.directory, "weets.segment.tmp");
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			writeSegment(new DataOutputStream(new BufferedOutputStream(out, 1 << 16)), archived, time);
+			out.getChannel().force(true);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		addSegment(new Segment(file, number));
+		//The archived weets are the oldest of the array list, and also the oldest of every user, day bucket and posting list they are in; the segment has its own posting lists
+		arrayWeet.removeFirst(count);
+		textIndex.removeBefore(time);
+		for (int i = 0; i < count; i++) {
+			arena.release(archivedMessages[i]);
+			SortedArrayList weets = Weetmap.get(archivedUids[i]);
+			weets.removeFirst(weets.countBefore(time, Integer.MIN_VALUE));
+			SortedArrayList bucket = dayMap.get(epochDay(archivedTimes[i]));
+			bucket.removeFirst(bucket.countBefore(time, Integer.MIN_VALUE));
+			weetIndex.remove(archivedIds[i]);
+		}
+		//The checkpoint no longer has to hold the archived weets
+		checkpoint();
+		return count;
+	}
+
+	private void addSegment(Segment segment) {
+
+		if (segmentCount == segments.length) {
+			segments = Arrays.copyOf(segments, segmentCount * 2);
+		}
+		segments[segmentCount] = segment;
+		segmentCount++;
+	}
+
+	private void loadSegments(File directory) throws IOException {
+		//Maps the segments in the order they were written and adds the topic counts stored in each of them to the topic counters, without reading a single archived message
+		File[] files = directory.listFiles();
+		int[] numbers = new int[files == null ? 0 : files.length];
+		int n = 0;
+		for (int i = 0; i < numbers.length; i++) {
+			String name = files[i].getName();
+			//Only files named like the segments archive() writes are read, so a renamed copy (such as weets.segment.3.bak) or a leftover temporary file is ignored
+			if (name.matches("weets\\.segment\\.[0-9]{1,9}")) {
+				numbers[n] = Integer.parseInt(name.substring("weets.segment.".length()));
+				n++;
+			}
+		}
+		Arrays.sort(numbers, 0, n);
+		long latest = Long.MIN_VALUE;
+		for (int i = 0; i < n; i++) {
+			Segment segment = new Segment(new File(directory, "weets.segment." + numbers[i]), numbers[i]);
+			addSegment(segment);
+			if (segment.size() > 0) {
+				latest = Math.max(latest, segment.date(segment.size() - 1));
+			}
+		}
+		//Only the minutes within the longest window before the latest archived weet can still be counted by getTrending(window); the weets replayed after this can only move the windows forward
+		long firstMinute = Math.floorDiv(latest, 60000L) - MAX_WINDOW_MINUTES + 1;
+		for (int i = 0; i < segmentCount; i++) {
+			Segment segment = segments[i];
+			String[] strings = new String[segment.topicCount()];
+			for (int t = 0; t < strings.length; t++) {
+				strings[t] = countTopic(segment.topic(t), segment.topicUses(t));
+			}
+			if (recentTopics != null) {
+				for (int e = segment.firstMinute(firstMinute); e < segment.minuteCount(); e++) {
+					recentTopics.add(strings[segment.minuteTopic(e)], segment.minute(e) * 60000L, segment.minuteUses(e));
+				}
+			}
+		}
+	}
+
+	public String[] getTrending(Duration window) {
+		//Returns the 10 most frequent topics of the weets created within the window before the latest weet, most frequent first; the window is rounded up to whole minutes
+		if (recentTopics == null) {
+			throw new IllegalStateException("getTrending(window) needs exact topic counts; this WeetStore counts topics approximately");
+		}
+		long minutes = (window.toMillis() + 59999L) / 60000L;
+		if (minutes < 1 || minutes > MAX_WINDOW_MINUTES) {
+			throw new IllegalArgumentException("The window must be between 1 minute and " + MAX_WINDOW_MINUTES + " minutes");
+		}
+		return recentTopics.getTrending((int) minutes, 10);
+	}
+
+	public String[] getTrending() {
+		//The heap always holds the 10 most frequent topics (the specification only asks for the top 10), so only those are sorted
+		if (approximateTopics != null) {
+			return approximateTopics.getTrending(10);
+		}
+		return trendingHeap.getTrending();
+	}
+
+	private void writeSegment(DataOutputStream out, Weet[] weets, long time) throws IOException {
+		//Writes the weets (sorted oldest first, all of the weets on the heap created before the time) to a segment file in the order the Segment constructor reads them, together with the posting list of every trigram of their messages and how often each topic was used in total and in every minute, so that opening the store never has to read the archived messages again
+		byte[][] messages = new byte[weets.length][];
+		long[] byId = new long[weets.length];
+		long[] byUser = new long[weets.length];
+		ScannedMessage scan = new ScannedMessage();
+		TopicTable totals = new TopicTable();
+		//Every use of a topic, in date order: the minute of the weet and the String the totals hold for the topic
+		long[] useMinutes = new long[16];
+		String[] useTopics = new String[16];
+		int uses = 0;
+		for (int i = 0; i < weets.length; i++) {
+			messages[i] = weets[i].getMessage().getBytes(StandardCharsets.UTF_8);
+			byId[i] = ((long) weets[i].getId() << 32) | i;
+			byUser[i] = ((long) weets[i].getUserId() << 32) | i;
+			long date = weets[i].getDateWeeted().getTime();
+			scan.scan(weets[i]);
+			int start = 0;
+			for (int j = 0; j < scan.topicCount; j++) {
+				int end = scan.topicEnds[j];
+				if (uses == useMinutes.length) {
+					useMinutes = Arrays.copyOf(useMinutes, uses * 2);
+					useTopics = Arrays.copyOf(useTopics, uses * 2);
+				}
+				useMinutes[uses] = Math.floorDiv(date, 60000L);
+				useTopics[uses] = totals.add(scan.topics, start, end - start, scan.topicHashes[j], 1).getString();
+				uses++;
+				start = end;
+			}
+		}
+		Arrays.sort(byId);
+		Arrays.sort(byUser);
+		//The weets created before the time are the front of every posting list of the text index, so their posting lists are copied from there instead of being built again. The trigram table is sorted by trigram so that it can be binary searched
+		long[] keys = new long[textIndex.size];
+		int trigramCount = 0;
+		int postings = 0;
+		for (int i = 0; i < textIndex.keys.length; i++) {
+			if (textIndex.lists[i] != null && textIndex.lists[i].countBefore(time) > 0) {
+				keys[trigramCount] = textIndex.keys[i];
+				trigramCount++;
+				postings += textIndex.lists[i].countBefore(time);
+			}
+		}
+		Arrays.sort(keys, 0, trigramCount);
+		//The topic table is sorted by topic, and a topic is referred to by its position in it
+		CountStringPair[] pairs = new CountStringPair[totals.size()];
+		int topicCount = 0;
+		for (int i = 0; i < totals.pairs.length; i++) {
+			if (totals.pairs[i] != null) {
+				pairs[topicCount] = totals.pairs[i];
+				topicCount++;
+			}
+		}
+		Arrays.sort(pairs, (x, y) -> x.getString().compareTo(y.getString()));
+		String[] names = new String[topicCount];
+		byte[][] encoded = new byte[topicCount][];
+		int topicBytes = 0;
+		for (int i = 0; i < topicCount; i++) {
+			names[i] = pairs[i].getString();
+			encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+			topicBytes += 4 + encoded[i].length;
+		}
+		//The uses of each topic are added up over every run of weets created in the same minute
+		long[] entryMinutes = new long[uses];
+		int[] entryTopics = new int[uses];
+		int[] entryCounts = new int[uses];
+		int entries = 0;
+		MinuteCounts bucket = new MinuteCounts();
+		for (int start = 0; start < uses;) {
+			int end = start;
+			while (end < uses && useMinutes[end] == useMinutes[start]) {
+				bucket.add(useTopics[end], 1);
+				end++;
+			}
+			for (int j = 0; j < bucket.topics.length; j++) {
+				if (bucket.topics[j] != null) {
+					entryMinutes[entries] = useMinutes[start];
+					entryTopics[entries] = Arrays.binarySearch(names, bucket.topics[j]);
+					entryCounts[entries] = bucket.counts[j];
+					entries++;
+				}
+			}
+			bucket.clear();
+			start = end;
+		}
+		out.writeInt(SEGMENT_MAGIC);
+		out.writeInt(SEGMENT_VERSION);
+		out.writeInt(weets.length);
+		out.writeInt(trigramCount);
+		out.writeInt(postings);
+		out.writeInt(topicCount);
+		out.writeInt(entries);
+		out.writeInt(topicBytes);
+		int offset = 0;
+		for (int i = 0; i < weets.length; i++) {
+			out.writeLong(weets[i].getDateWeeted().getTime());
+			out.writeInt(weets[i].getId());
+			out.writeInt(weets[i].getUserId());
+			out.writeInt(offset);
+			out.writeInt(messages[i].length);
+			offset += messages[i].length;
+		}
+		for (int i = 0; i < weets.length; i++) {
+			out.writeLong(byId[i]);
+		}
+		for (int i = 0; i < weets.length; i++) {
+			out.writeLong(byUser[i]);
+		}
+		PostingList[] lists = new PostingList[trigramCount];
+		int first = 0;
+		for (int i = 0; i < trigramCount; i++) {
+			lists[i] = textIndex.get(keys[i]);
+			int size = lists[i].countBefore(time);
+			out.writeLong(keys[i]);
+			out.writeInt(first);
+			out.writeInt(size);
+			first += size;
+		}
+		//There are far more postings than weets, so they are encoded into a reusable array and written 64KB at a time
+		byte[] chunk = new byte[1 << 16];
+		ByteBuffer encoder = ByteBuffer.wrap(chunk);
+		for (int i = 0; i < trigramCount; i++) {
+			int size = lists[i].countBefore(time);
+			for (int j = 0; j < size; j++) {
+				if (encoder.remaining() < 12) {
+					out.write(chunk, 0, encoder.position());
+					encoder.clear();
+				}
+				encoder.putLong(lists[i].dates[j]);
+				encoder.putInt(lists[i].ids[j]);
+			}
+		}
+		out.write(chunk, 0, encoder.position());
+		offset = 0;
+		for (int i = 0; i < topicCount; i++) {
+			out.writeInt(offset);
+			out.writeInt(pairs[i].getCount());
+			offset += 4 + encoded[i].length;
+		}
+		for (int i = 0; i < entries; i++) {
+			out.writeLong(entryMinutes[i]);
+			out.writeInt(entryTopics[i]);
+			out.writeInt(entryCounts[i]);
+		}
+		for (int i = 0; i < topicCount; i++) {
+			out.writeInt(encoded[i].length);
+			out.write(encoded[i]);
+		}
+		for (int i = 0; i < weets.length; i++) {
+			out.write(messages[i]);
+		}
+		out.flush();
+	}
+
+	public class MessageArena {
+		//The UTF-8 bytes of the messages of the weets on the heap, packed one after the other into byte arrays of 1MB. This is the only copy of a message on the heap: it is searched without creating a String, and decoded only when its weet is returned. A location is the number of the array in the high 32 bits and the offset in it in the low 32 bits, and it never changes, so every array list can keep it
+		private byte[][] chunks;
+		//How many messages in each array are still on the heap; an array is dropped once all of its messages have been archived
+		private int[] live;
+		private int chunkCount;
+		private int position;
+		private static final int CHUNK_SIZE = 1 << 20;
+
+		public MessageArena() {
+
+			chunks = new byte[4][];
+			live = new int[4];
+			chunkCount = 0;
+			position = 0;
+		}
+
+		private byte[] space(int length) {
+			//Returns the array the next message goes into; a message never spans two arrays, and one longer than an array gets an array of its own
+			if (chunkCount == 0 || chunks[chunkCount - 1].length - position < length) {
+				if (chunkCount == chunks.length) {
+					chunks = Arrays.copyOf(chunks, chunkCount * 2);
+					live = Arrays.copyOf(live, chunkCount * 2);
+				}
+				chunks[chunkCount] = new byte[Math.max(CHUNK_SIZE, length)];
+				chunkCount++;
+				position = 0;
+			}
+			live[chunkCount - 1]++;
+			return chunks[chunkCount - 1];
+		}
+
+		public long add(String message, int length) {
+			//Encodes the message (which is "length" bytes long in UTF-8) straight into the arena without creating a byte array for it
+			byte[] chunk = space(length);
+			long location = ((long) (chunkCount - 1) << 32) | position;
+			int p = position;
+			for (int i = 0; i < message.length(); i++) {
+				char c = message.charAt(i);
+				if (c < 0x80) {
+					chunk[p++] = (byte) c;
+				} else if (c < 0x800) {
+					chunk[p++] = (byte) (0xC0 | (c >> 6));
+					chunk[p++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < message.length() && Character.isLowSurrogate(message.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, message.charAt(i + 1));
+					chunk[p++] = (byte) (0xF0 | (codePoint >> 18));
+					chunk[p++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+					chunk[p++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+					chunk[p++] = (byte) (0x80 | (codePoint & 0x3F));
+					i++;
+				} else if (Character.isSurrogate(c)) {
+					chunk[p++] = (byte) '?';
+				} else {
+					chunk[p++] = (byte) (0xE0 | (c >> 12));
+					chunk[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					chunk[p++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+			position = p;
+			return location;
+		}
+
+		public void release(long location) {
+			//Called once for every message that leaves the heap. Messages mostly arrive in date order, so the arrays fill up with messages that are archived together; an array that still holds a late message is kept until that one is archived too
+			int chunk = (int) (location >>> 32);
+			live[chunk]--;
+			if (live[chunk] == 0 && chunk != chunkCount - 1) {
+				chunks[chunk] = null;
+			}
+		}
+
+		public byte[] chunk(long location) {
+
+			return chunks[(int) (location >>> 32)];
+		}
+
+		public String string(long location, int length) {
+
+			return new String(chunks[(int) (location >>> 32)], (int) location, length, StandardCharsets.UTF_8);
+		}
+
+		public int contains(long location, int length, byte[] query) {
+
+			return WeetStore.contains(chunks[(int) (location >>> 32)], (int) location, length, query);
+		}
+	}
+
+	public class Run {
+		//A range [lo, hi) of weets sorted oldest first in one tier: part of an array list, an array sorted latest first, part of a segment, or (byUser) part of the user table of a segment
+		SortedArrayList list;
+		Weet[] latestFirst;
+		Segment segment;
+		boolean byUser;
+		int lo;
+		int hi;
+
+		public Run(SortedArrayList list, int lo, int hi) {
+
+			this.list = list;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		public Run(Weet[] latestFirst) {
+
+			this.latestFirst = latestFirst;
+			this.lo = 0;
+			this.hi = latestFirst.length;
+		}
+
+		public Run(Segment segment, int lo, int hi, boolean byUser) {
+
+			this.segment = segment;
+			this.byUser = byUser;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		private int record(int i) {
+
+			return byUser ? segment.userRecord(i) : i;
+		}
+
+		public long date(int i) {
+
+			if (list != null) {
+				return list.times[i];
+			} else if (segment != null) {
+				return segment.date(record(i));
+			}
+			return weet(i).getDateWeeted().getTime();
+		}
+
+		public int id(int i) {
+
+			if (list != null) {
+				return list.ids[i];
+			} else if (segment != null) {
+				return segment.id(record(i));
+			}
+			return weet(i).getId();
+		}
+
+		public boolean matches(int i, byte[] query, char[] folded) {
+
+			if (list != null) {
+				return list.matches(i, query, folded) == 1;
+			} else if (latestFirst != null) {
+				return containsFolded(weet(i).getMessage(), folded);
+			}
+			return segment.matches(record(i), query, folded) == 1;
+		}
+
+		public Weet weet(int i) {
+
+			if (list != null) {
+				return list.weet(i);
+			} else if (latestFirst != null) {
+				return latestFirst[latestFirst.length - 1 - i];
+			}
+			return segment.get(record(i));
+		}
+
+		public void cutBefore(long date, int id) {
+			//Binary searches the run for the weets that come before the specified date and weet ID and drops the newer ones
+			int low = lo;
+			int high = hi;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				long midDate = date(mid);
+				if (midDate < date || (midDate == date && id(mid) < id)) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			hi = low;
+		}
+	}
+
+	public class RunHeap {
+		//A binary max-heap of runs ordered by the latest weet left in each run (latest date, then highest weet ID), for merging K runs in O(log(K)) per weet
+		private Run[] heap;
+		private long[] dates;
+		private int[] ids;
+		private int size;
+		//The number of weets left in all the runs
+		private long total;
+
+		public RunHeap(int capacity) {
+
+			heap = new Run[capacity];
+			dates = new long[capacity];
+			ids = new int[capacity];
+			size = 0;
+		}
+
+		public long total() {
+
+			return total;
+		}
+
+		public void add(Run run) {
+			//Empty runs are left out; build() must be called once every run has been added
+			if (run.hi > run.lo) {
+				heap[size] = run;
+				dates[size] = run.date(run.hi - 1);
+				ids[size] = run.id(run.hi - 1);
+				size++;
+				total += run.hi - run.lo;
+			}
+		}
+
+		public void build() {
+			//Heapifies the runs bottom up in O(K)
+			for (int i = size / 2 - 1; i >= 0; i--) {
+				siftDown(i);
+			}
+		}
+
+		public Weet next() {
+			//Takes the latest weet off the run at the top of the heap and moves that run down to its new place (or removes it once it is empty)
+			Run run = heap[0];
+			run.hi--;
+			total--;
+			Weet weet = run.weet(run.hi);
+			if (run.hi > run.lo) {
+				dates[0] = run.date(run.hi - 1);
+				ids[0] = run.id(run.hi - 1);
+			} else {
+				size--;
+				heap[0] = heap[size];
+				dates[0] = dates[size];
+				ids[0] = ids[size];
+				heap[size] = null;
+			}
+			siftDown(0);
+			return weet;
+		}
+
+		private boolean isNewer(int a, int b) {
+
+			return dates[a] > dates[b] || (dates[a] == dates[b] && ids[a] > ids[b]);
+		}
+
+		private void siftDown(int i) {
+
+			while (true) {
+				int largest = i;
+				int left = 2 * i + 1;
+				int right = left + 1;
+				if (left < size && isNewer(left, largest)) {
+					largest = left;
+				}
+				if (right < size && isNewer(right, largest)) {
+					largest = right;
+				}
+				if (largest == i) {
+					return;
+				}
+				Run run = heap[i];
+				heap[i] = heap[largest];
+				heap[largest] = run;
+				long date = dates[i];
+				dates[i] = dates[largest];
+				dates[largest] = date;
+				int id = ids[i];
+				ids[i] = ids[largest];
+				ids[largest] = id;
+				i = largest;
+			}
+		}
+	}
+
+	public class Segment {
+		//An immutable, memory mapped file of archived weets: a header, a table of fixed width records sorted by date (date, weet ID, user ID, and the offset and length of the message), a table of (weet ID, record) sorted by weet ID, a table of (user ID, record) sorted by user ID and then by date, a table of (trigram, first posting, number of postings) sorted by trigram, the postings (date, weet ID) of every trigram in date order, a table of (offset of the name, count) sorted by topic, a table of (minute, topic, count) in date order, the UTF-8 topic names and the UTF-8 messages. Nothing is copied onto the heap until a weet or a topic is read
+		private ByteBuffer buffer;
+		private int size;
+		private int records;
+		private int idTable;
+		private int userTable;
+		private int trigramTable;
+		private int trigramCount;
+		private int postings;
+		private int topicTable;
+		private int topicCount;
+		private int minuteTable;
+		private int minuteCount;
+		private int topicNames;
+		private int blob;
+		private byte[] scratch;
+		int number;
+
+		public Segment(File file, int number) throws IOException {
+
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			if (buffer.limit() < 32 || buffer.getInt(0) != SEGMENT_MAGIC) {
+				throw new IOException(file + " is not a WeetStore segment");
+			}
+			if (buffer.getInt(4) != SEGMENT_VERSION) {
+				throw new IOException(file + " is a segment of version " + buffer.getInt(4) + ", only version " + SEGMENT_VERSION + " can be read");
+			}
+			this.number = number;
+			scratch = new byte[256];
+			size = buffer.getInt(8);
+			trigramCount = buffer.getInt(12);
+			int postingCount = buffer.getInt(16);
+			topicCount = buffer.getInt(20);
+			minuteCount = buffer.getInt(24);
+			int topicBytes = buffer.getInt(28);
+			//The tables are worked out in longs first, so that a count that does not fit the file is reported instead of wrapping around
+			long end = 32L + size * 40L + trigramCount * 16L + postingCount * 12L + topicCount * 8L + minuteCount * 16L + topicBytes;
+			if (size < 0 || trigramCount < 0 || postingCount < 0 || topicCount < 0 || minuteCount < 0 || topicBytes < 0 || end > buffer.limit()) {
+				throw new IOException(file + " is truncated or corrupt");
+			}
+			records = 32;
+			idTable = records + size * 24;
+			userTable = idTable + size * 8;
+			trigramTable = userTable + size * 8;
+			postings = trigramTable + trigramCount * 16;
+			topicTable = postings + postingCount * 12;
+			minuteTable = topicTable + topicCount * 8;
+			topicNames = minuteTable + minuteCount * 16;
+			blob = topicNames + topicBytes;
+		}
+
+		public int size() {
+
+			return size;
+		}
+
+		public long date(int i) {
+
+			return buffer.getLong(records + i * 24);
+		}
+
+		public int id(int i) {
+
+			return buffer.getInt(records + i * 24 + 8);
+		}
+
+		public Weet get(int i) {
+			//Reads a weet out of the mapping
+			int record = records + i * 24;
+			byte[] message = new byte[buffer.getInt(record + 20)];
+			ByteBuffer view = buffer.duplicate();
+			view.position(blob + buffer.getInt(record + 16));
+			view.get(message);
+			return new Weet(buffer.getInt(record + 8), buffer.getInt(record + 12), new String(message, StandardCharsets.UTF_8), new Date(buffer.getLong(record)));
+		}
+
+		public int matches(int i, byte[] query, char[] folded) {
+			//Searches the bytes of the message (bulk copied out of the mapping into a reusable array), and only decodes the message if it has characters outside ASCII that could still match
+			int record = records + i * 24;
+			int length = buffer.getInt(record + 20);
+			if (scratch.length < length) {
+				scratch = new byte[Math.max(length, scratch.length * 2)];
+			}
+			ByteBuffer view = buffer.duplicate();
+			view.position(blob + buffer.getInt(record + 16));
+			view.get(scratch, 0, length);
+			int found = WeetStore.contains(scratch, 0, length, query);
+			if (found >= 0) {
+				return found;
+			}
+			return containsFolded(get(i).getMessage(), folded) ? 1 : 0;
+		}
+
+		public int find(int wid) {
+			//Binary searches the ID table and returns the record of the weet, or -1 if it is not in the segment
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				int id = buffer.getInt(idTable + mid * 8);
+				if (id < wid) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			if (lo < size && buffer.getInt(idTable + lo * 8) == wid) {
+				return buffer.getInt(idTable + lo * 8 + 4);
+			}
+			return -1;
+		}
+
+		public int userStart(long uid) {
+			//The position in the user table of the first weet of the first user whose ID is at least uid
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (buffer.getInt(userTable + mid * 8) < uid) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		public int userRecord(int i) {
+
+			return buffer.getInt(userTable + i * 8 + 4);
+		}
+
+		public int countBefore(long date, int id) {
+			//Binary searches for the number of weets that come before the specified date and weet ID, like SortedArrayList.countBefore()
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				long midDate = date(mid);
+				if (midDate < date || (midDate == date && id(mid) < id)) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		public PostingList[] lists(char[] folded) {
+			//Same as TrigramIndex.lists() for the weets of this segment: the trigram table is binary searched for every trigram of the (already lower case) query, and the posting lists are views of the mapping
+			int n = folded.length - 2;
+			PostingList[] found = new PostingList[n];
+			for (int i = 0; i < n; i++) {
+				long key = trigram(folded[i], folded[i + 1], folded[i + 2]);
+				int lo = 0;
+				int hi = trigramCount;
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (buffer.getLong(trigramTable + mid * 16) < key) {
+						lo = mid + 1;
+					} else {
+						hi = mid;
+					}
+				}
+				int entry = trigramTable + lo * 16;
+				if (lo == trigramCount || buffer.getLong(entry) != key) {
+					return null;
+				}
+				found[i] = new PostingList(buffer, postings + buffer.getInt(entry + 8) * 12, buffer.getInt(entry + 12));
+			}
+			sortBySize(found);
+			return found;
+		}
+
+		public int topicCount() {
+
+			return topicCount;
+		}
+
+		public String topic(int t) {
+			//Decodes the name of the t-th topic of the segment
+			int offset = topicNames + buffer.getInt(topicTable + t * 8);
+			byte[] name = new byte[buffer.getInt(offset)];
+			ByteBuffer view = buffer.duplicate();
+			view.position(offset + 4);
+			view.get(name);
+			return new String(name, StandardCharsets.UTF_8);
+		}
+
+		public int topicUses(int t) {
+			//How often the t-th topic was used by the weets of the segment
+			return buffer.getInt(topicTable + t * 8 + 4);
+		}
+
+		public int minuteCount() {
+
+			return minuteCount;
+		}
+
+		public int firstMinute(long minute) {
+			//Binary searches the minute table for its first entry of that minute or later
+			int lo = 0;
+			int hi = minuteCount;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (minute(mid) < minute) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		public long minute(int e) {
+
+			return buffer.getLong(minuteTable + e * 16);
+		}
+
+		public int minuteTopic(int e) {
+
+			return buffer.getInt(minuteTable + e * 16 + 8);
+		}
+
+		public int minuteUses(int e) {
+
+			return buffer.getInt(minuteTable + e * 16 + 12);
+		}
+
+		public int firstOnDay(int day) {
+			//Binary searches for the first weet created on or after the day
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (epochDay(date(mid)) < day) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	public class WeetLog {
+		//Append-only log of length prefixed weet records. Every record is written through to the operating system before append() returns, so an added weet survives the JVM being killed; records are forced to disk once every groupSize records, once every flushMillis milliseconds by a background thread (so a quiet store does not leave them unforced), or by commit(), so many weets share the cost of one fsync
+		private File directory;
+		private FileOutputStream file;
+		private DataOutputStream out;
+		private CRC32 crc;
+		private int groupSize;
+		private int pending;
+		//The length of the complete records in the log file
+		private long length;
+		//Set once a write or an fsync has failed: the log no longer knows what is on disk, so every later write fails too
+		private IOException failure;
+		private ScheduledExecutorService flusher;
+		//The number of records written since the last checkpoint
+		long records;
+
+		public WeetLog(File directory, File logFile, long valid, int groupSize, long flushMillis) throws IOException {
+			//Cuts off an incomplete record left at the end of the log before appending to it
+			this.directory = directory;
+			this.groupSize = groupSize;
+			file = new FileOutputStream(logFile, true);
+			file.getChannel().truncate(valid);
+			out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+			crc = new CRC32();
+			pending = 0;
+			length = valid;
+			records = 0;
+			flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread thread = new Thread(task, "WeetLog flusher");
+				thread.setDaemon(true);
+				return thread;
+			});
+			flusher.scheduleWithFixedDelay(() -> {
+				try {
+					commit();
+				} catch (IOException e) {
+					//commit() has recorded the failure, and the next write reports it
+				}
+			}, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+		}
+
+		public synchronized void append(Weet weet) throws IOException {
+			//Logs one weet; it is forced to disk with the rest of its group. If this call's fsync fails, only this weet is cut off the log again: the weets logged earlier in the group have already been added, so they stay
+			long start = write(new Weet[] {weet}, 1);
+			if (pending >= groupSize) {
+				commitOrRollback(start);
+			}
+		}
+
+		public synchronized void append(Weet[] weets, int count) throws IOException {
+			//Logs a whole batch and forces it to disk with a single fsync; if any of it cannot be written or forced, none of it is left in the log
+			commitOrRollback(write(weets, count));
+		}
+
+		private void commitOrRollback(long start) throws IOException {
+
+			try {
+				commit();
+			} catch (IOException e) {
+				rollback(start, e);
+				throw e;
+			}
+		}
+
+		private long write(Weet[] weets, int count) throws IOException {
+			//Writes the records through to the operating system and returns the length the log had before them
+
+			if (failure != null) {
+				throw new IOException("The weet log failed earlier", failure);
+			}
+			long start = length;
+			try {
+				for (int i = 0; i < count; i++) {
+					length += writeRecord(out, weets[i], crc);
+				}
+				out.flush();
+			} catch (IOException e) {
+				rollback(start, e);
+				throw e;
+			}
+			pending += count;
+			records += count;
+			return start;
+		}
+
+		private void rollback(long start, IOException e) {
+			//Drops the records written from "start" on (whether they were only partly written or written but not forced), together with whatever is still buffered, so that weets that were not added are not found again on recovery
+			failure = e;
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+				file.getChannel().truncate(start);
+				length = start;
+				pending = 0;
+			} catch (IOException ignored) {
+				//The log cannot even be cut back; it refuses every later write anyway
+			}
+		}
+
+		public synchronized void commit() throws IOException {
+
+			if (failure != null) {
+				throw new IOException("The weet log failed earlier", failure);
+			}
+			if (pending > 0) {
+				try {
+					out.flush();
+					file.getChannel().force(false);
+				} catch (IOException e) {
+					failure = e;
+					throw e;
+				}
+				pending = 0;
+			}
+		}
+
+		public synchronized void truncate() throws IOException {
+			//Empties the log once a checkpoint holds all of its weets
+			commit();
+			file.getChannel().truncate(0);
+			file.getChannel().force(true);
+			length = 0;
+			records = 0;
+		}
+
+		public synchronized void close() throws IOException {
+
+			flusher.shutdownNow();
+			commit();
+			out.close();
+		}
+	}
+
+	public class ScannedMessage {
+		//The result of reading a message once, one character at a time and lowercasing each character once: the trigrams for the text index, and every topic (a # followed by letters, digits, - or _) packed one after the other into a char array together with its hash code. The arrays are reused, so scanning a message into an old ScannedMessage creates no objects
+		Weet weet;
+		long[] trigrams;
+		int trigramCount;
+		char[] topics;
+		int[] topicEnds;
+		int[] topicHashes;
+		int topicCount;
+
+		public ScannedMessage() {
+
+			trigrams = new long[64];
+			topics = new char[32];
+			topicEnds = new int[4];
+			topicHashes = new int[4];
+		}
+
+		public void scan(Weet weet) {
+
+			this.weet = weet;
+			String message = weet.getMessage();
+			trigramCount = 0;
+			topicCount = 0;
+			if (trigrams.length < message.length()) {
+				trigrams = new long[message.length()];
+			}
+			char a = 0;
+			char b = 0;
+			//start is the position of the current topic in the topics array, or -1 when there is no topic being read
+			int start = -1;
+			int end = 0;
+			int hash = 0;
+			for (int i = 0; i < message.length(); i++) {
+				char c = Character.toLowerCase(message.charAt(i));
+				if (i >= 2) {
+					trigrams[trigramCount] = trigram(a, b, c);
+					trigramCount++;
+				}
+				a = b;
+				b = c;
+				if (start >= 0 && isTopicChar(c)) {
+					append(end, c);
+					end++;
+					hash = 31 * hash + c;
+				} else {
+					//The topic ends at the first character that cannot be part of it, which may be the # of the next topic
+					if (start >= 0) {
+						end = endTopic(start, end, hash);
+					}
+					start = -1;
+					if (c == '#') {
+						start = end;
+						append(end, c);
+						end++;
+						hash = c;
+					}
+				}
+			}
+			if (start >= 0) {
+				endTopic(start, end, hash);
+			}
+		}
+
+		private void append(int i, char c) {
+
+			if (i == topics.length) {
+				topics = Arrays.copyOf(topics, i * 2);
+			}
+			topics[i] = c;
+		}
+
+		private int endTopic(int start, int end, int hash) {
+			//Keeps the topic if it has at least one character after the #, and returns where the next topic starts
+			if (end - start < 2) {
+				return start;
+			}
+			if (topicCount == topicEnds.length) {
+				topicEnds = Arrays.copyOf(topicEnds, topicCount * 2);
+				topicHashes = Arrays.copyOf(topicHashes, topicCount * 2);
+			}
+			topicEnds[topicCount] = end;
+			topicHashes[topicCount] = hash;
+			topicCount++;
+			return end;
+		}
+
+		private boolean isTopicChar(char c) {
+
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+		}
+	}
+
+	private static long trigram(char a, char b, char c) {
+		//Packs 3 characters into a long
+		return ((long) a << 32) | ((long) b << 16) | c;
+	}
+
+	private static void sortBySize(PostingList[] lists) {
+		//Insertion sort of the (few) posting lists of a query, shortest first, so that the shortest one drives the intersection
+		for (int i = 1; i < lists.length; i++) {
+			PostingList temp = lists[i];
+			int j = i - 1;
+			while (j >= 0 && lists[j].size() > temp.size()) {
+				lists[j + 1] = lists[j];
+				j--;
+			}
+			lists[j + 1] = temp;
+		}
+	}
+
+	private void index(ScannedMessage scanned) {
+		//Adds the trigrams of a scanned weet to the text index and counts its topics
+		Weet weet = scanned.weet;
+		long date = weet.getDateWeeted().getTime();
+		for (int i = 0; i < scanned.trigramCount; i++) {
+			textIndex.add(scanned.trigrams[i], date, weet.getId());
+		}
+		int start = 0;
+		for (int i = 0; i < scanned.topicCount; i++) {
+			int end = scanned.topicEnds[i];
+			countTopic(scanned.topics, start, end - start, scanned.topicHashes[i], date);
+			start = end;
+		}
+	}
+
+	private void countTopic(char[] topic, int start, int length, int hash, long time) {
+		//Counts one topic approximately if the store was created with an error bound, and otherwise exactly and in the per-minute ring, sharing the String that the counters already hold
+		if (approximateTopics != null) {
+			approximateTopics.add(topic, start, length, hash, 1);
+		} else {
+			CountStringPair pair = topics.add(topic, start, length, hash, 1);
+			trendingHeap.update(pair);
+			recentTopics.add(pair.getString(), time, 1);
+		}
+	}
+
+	private String countTopic(String topic, int count) {
+		//Adds "count" uses of a topic of an archived segment to the counters of getTrending() in one step, and returns the String the exact counters hold for it (null when topics are counted approximately)
+		char[] chars = topic.toCharArray();
+		if (approximateTopics != null) {
+			approximateTopics.add(chars, 0, chars.length, topic.hashCode(), count);
+			return null;
+		}
+		CountStringPair pair = topics.add(chars, 0, chars.length, topic.hashCode(), count);
+		trendingHeap.update(pair);
+		return pair.getString();
+	}
+
+	private static boolean sameTopic(String string, char[] topic, int start, int length) {
+
+		if (string.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (string.charAt(i) != topic[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public class TopicTable {
+		//Open addressing hash table from a topic to its CountStringPair, so a topic is counted without comparing it to every other topic
+		private CountStringPair[] pairs;
+		private int size;
+		private int mask;
+
+		public TopicTable() {
+
+			pairs = new CountStringPair[256];
+			mask = pairs.length - 1;
+			size = 0;
+		}
+
+		private int hash(int hashCode) {
+
+			int h = hashCode * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		public int size() {
+
+			return size;
+		}
+
+		public CountStringPair add(char[] topic, int start, int length, int hashCode, int count) {
+			//Adds "count" to the count of the topic held in "length" characters of the array from position "start" (adding it if it is new) and returns its CountStringPair; hashCode is the String.hashCode() of the topic, and a String is only created for a new topic
+			int i = hash(hashCode);
+			while (pairs[i] != null) {
+				if (sameTopic(pairs[i].getString(), topic, start, length)) {
+					pairs[i].addCount(count);
+					return pairs[i];
+				}
+				i = (i + 1) & mask;
+			}
+			CountStringPair pair = new CountStringPair(new String(topic, start, length));
+			pair.addCount(count);
+			pairs[i] = pair;
+			size++;
+			if (size * 2 > pairs.length) {
+				resize();
+			}
+			return pair;
+		}
+
+		private void resize() {
+
+			CountStringPair[] oldPairs = pairs;
+			pairs = new CountStringPair[oldPairs.length * 2];
+			mask = pairs.length - 1;
+			for (int i = 0; i < oldPairs.length; i++) {
+				if (oldPairs[i] != null) {
+					int j = hash(oldPairs[i].getString().hashCode());
+					while (pairs[j] != null) {
+						j = (j + 1) & mask;
+					}
+					pairs[j] = oldPairs[i];
+				}
+			}
+		}
+	}
+
+	public class TrendingHeap {
+		//Indexed min-heap of the K most frequent topics: the least frequent of them is at the root, and every CountStringPair remembers its position in the heap so it can be moved after its count changes
+		private CountStringPair[] heap;
+		private int size;
+		private String[] trending;
+
+		public TrendingHeap(int k) {
+
+			heap = new CountStringPair[k];
+			size = 0;
+		}
+
+		public void update(CountStringPair pair) {
+			//Called after the count of a topic went up. Counts only ever go up, so a topic in the heap can only move away from the root, and a topic outside the heap only gets in by beating the root
+			if (pair.heapIndex >= 0) {
+				siftDown(pair.heapIndex);
+			} else if (size < heap.length) {
+				heap[size] = pair;
+				pair.heapIndex = size;
+				size++;
+				siftUp(size - 1);
+			} else if (pair.getCount() > heap[0].getCount()) {
+				heap[0].heapIndex = -1;
+				heap[0] = pair;
+				pair.heapIndex = 0;
+				siftDown(0);
+			} else {
+				return;
+			}
+			trending = null;
+		}
+
+		public String[] getTrending() {
+			//Sorts the (at most K) topics of the heap by frequency, most frequent first; the result is kept until the heap changes again
+			if (trending == null) {
+				CountStringPair[] sorted = Arrays.copyOf(heap, size);
+				for (int i = 1; i < size; i++) {
+					CountStringPair temp = sorted[i];
+					int j = i - 1;
+					while (j >= 0 && sorted[j].getCount() < temp.getCount()) {
+						sorted[j + 1] = sorted[j];
+						j--;
+					}
+					sorted[j + 1] = temp;
+				}
+				trending = new String[heap.length];
+				for (int i = 0; i < size; i++) {
+					trending[i] = sorted[i].getString();
+				}
+			}
+			return trending.clone();
+		}
+
+		private void siftUp(int i) {
+
+			CountStringPair pair = heap[i];
+			while (i > 0 && heap[(i - 1) / 2].getCount() > pair.getCount()) {
+				heap[i] = heap[(i - 1) / 2];
+				heap[i].heapIndex = i;
+				i = (i - 1) / 2;
+			}
+			heap[i] = pair;
+			pair.heapIndex = i;
+		}
+
+		private void siftDown(int i) {
+
+			CountStringPair pair = heap[i];
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && heap[child + 1].getCount() < heap[child].getCount()) {
+					child++;
+				}
+				if (heap[child].getCount() >= pair.getCount()) {
+					break;
+				}
+				heap[i] = heap[child];
+				heap[i].heapIndex = i;
+				i = child;
+			}
+			heap[i] = pair;
+			pair.heapIndex = i;
+		}
+	}
+
+	public class ApproximateTopics {
+		//Approximate topic counting in a fixed amount of memory: a Count-Min Sketch estimates the count of any topic, and a Space-Saving summary keeps the (at most) "capacity" topics that are most likely to be frequent
+		private int[][] sketch;
+		private long[] multipliers;
+		private long[] offsets;
+		private int width;
+		private CounterTable monitored;
+		private StreamSummary summary;
+		private int capacity;
+
+		public ApproximateTopics(double epsilon, double delta) {
+			//A sketch of width e/epsilon and depth ln(1/delta) overestimates a count by more than epsilon * (number of topics added) with a probability of at most delta; the Space-Saving summary monitors 1/epsilon topics, which has the same error bound
+			width = (int) Math.ceil(Math.E / epsilon);
+			int depth = Math.max(1, (int) Math.ceil(Math.log(1 / delta)));
+			sketch = new int[depth][width];
+			multipliers = new long[depth];
+			offsets = new long[depth];
+			java.util.Random random = new java.util.Random(0x57454554L);
+			for (int i = 0; i < depth; i++) {
+				multipliers[i] = random.nextLong() | 1;
+				offsets[i] = random.nextLong();
+			}
+			capacity = Math.max(10, (int) Math.ceil(1 / epsilon));
+			monitored = new CounterTable();
+			summary = new StreamSummary();
+		}
+
+		private int column(int row, int hash) {
+
+			long h = multipliers[row] * hash + offsets[row];
+			return (int) ((h >>> 33) % width);
+		}
+
+		public void add(char[] topic, int start, int length, int hash, int count) {
+			//Counts "count" uses of the topic held in "length" characters of the array from position "start" (hash is its String.hashCode()); a String is only created if the topic is not monitored already, and it replaces the String of the topic it evicts
+			for (int i = 0; i < sketch.length; i++) {
+				sketch[i][column(i, hash)] += count;
+			}
+			TopicCounter counter = monitored.get(topic, start, length, hash);
+			if (counter == null) {
+				String string = new String(topic, start, length);
+				if (monitored.size() < capacity) {
+					counter = new TopicCounter(string);
+					monitored.put(counter);
+				} else {
+					//Space-Saving: the least frequent monitored topic is replaced by the new one, which inherits (and overestimates by) its count
+					counter = summary.min();
+					monitored.remove(counter.topic);
+					counter.topic = string;
+					monitored.put(counter);
+				}
+			}
+			summary.increment(counter, count);
+		}
+
+		public int estimate(String topic) {
+			//The smallest counter of the topic in the sketch, which is never lower than the true count
+			int hash = topic.hashCode();
+			int min = Integer.MAX_VALUE;
+			for (int i = 0; i < sketch.length; i++) {
+				min = Math.min(min, sketch[i][column(i, hash)]);
+			}
+			return min;
+		}
+
+		public String[] getTrending(int k) {
+			//Both the sketch and the summary can only overestimate, so every topic is ranked by the smaller of the two. The summary is read from its highest count down, and stops once its count is below the k-th best estimate found so far, because no later topic can beat it
+			String[] array = new String[k];
+			int[] counts = new int[k];
+			int found = 0;
+			for (CountBucket b = summary.highest; b != null; b = b.prev) {
+				if (found == k && b.count <= counts[k - 1]) {
+					break;
+				}
+				for (TopicCounter c = b.head; c != null; c = c.next) {
+					int count = Math.min(c.count, estimate(c.topic));
+					if (found < k || count > counts[k - 1]) {
+						int j = (found < k) ? found : k - 1;
+						while (j > 0 && counts[j - 1] < count) {
+							counts[j] = counts[j - 1];
+							array[j] = array[j - 1];
+							j--;
+						}
+						counts[j] = count;
+						array[j] = c.topic;
+						if (found < k) {
+							found++;
+						}
+					}
+				}
+			}
+			return array;
+		}
+	}
+
+	public class RecentTopics {
+		//Counts topics over sliding windows (the last few minutes before the latest weet). A ring of per-minute buckets covering the longest window allowed counts how often each topic was used in each minute, and each of the (at most MAX_WINDOWS) windows asked for most recently keeps its own counters, which go up as topics are added and down as whole minutes fall out of the window
+		private MinuteCounts[] ring;
+		private long[] ringMinutes;
+		private long latestMinute;
+		private TrendingWindow[] windows;
+		private int windowCount;
+		//Counts the calls to getTrending(), so that the window that has not been asked for the longest can be replaced
+		private long clock;
+
+		public RecentTopics() {
+
+			ring = new MinuteCounts[MAX_WINDOW_MINUTES];
+			ringMinutes = new long[MAX_WINDOW_MINUTES];
+			latestMinute = Long.MIN_VALUE;
+			windows = new TrendingWindow[MAX_WINDOWS];
+			windowCount = 0;
+			clock = 0;
+		}
+
+		private int slot(long minute) {
+
+			return (int) Math.floorMod(minute, (long) MAX_WINDOW_MINUTES);
+		}
+
+		public void add(String topic, long time, int count) {
+			//Counts "count" uses of the topic at that time. The clock is the time of the latest weet, so a newer weet moves every window forward before the topic is counted
+			long minute = Math.floorDiv(time, 60000L);
+			if (minute > latestMinute) {
+				advance(minute);
+			}
+			//A weet that arrives late is still counted by the windows it falls in, but one older than the ring is ignored
+			if (minute <= latestMinute - MAX_WINDOW_MINUTES) {
+				return;
+			}
+			int i = slot(minute);
+			if (ringMinutes[i] != minute || ring[i] == null) {
+				//A bucket that grew large during a busy minute is not kept for the next minute that reuses its slot
+				if (ring[i] == null || ring[i].topics.length > 64) {
+					ring[i] = new MinuteCounts();
+				} else {
+					ring[i].clear();
+				}
+				ringMinutes[i] = minute;
+			}
+			ring[i].add(topic, count);
+			for (int w = 0; w < windowCount; w++) {
+				if (minute > latestMinute - windows[w].minutes) {
+					windows[w].increment(topic, count);
+				}
+			}
+		}
+
+		private void advance(long minute) {
+			//Takes the minutes that fall out of each window off its counters, one count per topic and minute; a window that moves by its whole length is simply emptied
+			if (latestMinute != Long.MIN_VALUE) {
+				for (int w = 0; w < windowCount; w++) {
+					TrendingWindow window = windows[w];
+					if (minute - latestMinute >= window.minutes) {
+						window.clear();
+					} else {
+						for (long m = latestMinute - window.minutes + 1; m <= minute - window.minutes; m++) {
+							int i = slot(m);
+							if (ringMinutes[i] == m && ring[i] != null) {
+								MinuteCounts bucket = ring[i];
+								for (int j = 0; j < bucket.topics.length; j++) {
+									if (bucket.topics[j] != null) {
+										window.decrement(bucket.topics[j], bucket.counts[j]);
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+			latestMinute = minute;
+		}
+
+		public String[] getTrending(int minutes, int k) {
+
+			return window(minutes).summary.top(k);
+		}
+
+		private TrendingWindow window(int minutes) {
+			//Looks for the counters of a window of that many minutes, and builds them from the ring the first time the window is asked for. Only MAX_WINDOWS windows are kept, so that adding a topic never costs more than MAX_WINDOWS counter updates; once they are all used, the window asked for least recently is replaced
+			clock++;
+			for (int w = 0; w < windowCount; w++) {
+				if (windows[w].minutes == minutes) {
+					windows[w].lastUsed = clock;
+					return windows[w];
+				}
+			}
+			TrendingWindow window = new TrendingWindow(minutes);
+			window.lastUsed = clock;
+			if (latestMinute != Long.MIN_VALUE) {
+				for (long m = latestMinute - minutes + 1; m <= latestMinute; m++) {
+					int i = slot(m);
+					if (ringMinutes[i] == m && ring[i] != null) {
+						MinuteCounts bucket = ring[i];
+						for (int j = 0; j < bucket.topics.length; j++) {
+							if (bucket.topics[j] != null) {
+								window.increment(bucket.topics[j], bucket.counts[j]);
+							}
+						}
+					}
+				}
+			}
+			if (windowCount < windows.length) {
+				windows[windowCount] = window;
+				windowCount++;
+			} else {
+				int oldest = 0;
+				for (int w = 1; w < windowCount; w++) {
+					if (windows[w].lastUsed < windows[oldest].lastUsed) {
+						oldest = w;
+					}
+				}
+				windows[oldest] = window;
+			}
+			return window;
+		}
+	}
+
+	public class MinuteCounts {
+		//How often each topic was used within one minute: an open addressing hash table from the topic to its count, so a minute holds one entry per topic instead of one per weet
+		String[] topics;
+		int[] counts;
+		private int size;
+		private int mask;
+
+		public MinuteCounts() {
+
+			topics = new String[8];
+			counts = new int[8];
+			mask = topics.length - 1;
+			size = 0;
+		}
+
+		public void clear() {
+
+			Arrays.fill(topics, null);
+			size = 0;
+		}
+
+		public void add(String topic, int count) {
+			//The topics are the Strings held by the topic counters, so the same topic is usually the same String
+			int h = topic.hashCode() * 0x9E3779B9;
+			int i = (h ^ (h >>> 16)) & mask;
+			while (topics[i] != null) {
+				if (topics[i] == topic || topics[i].equals(topic)) {
+					counts[i] += count;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			topics[i] = topic;
+			counts[i] = count;
+			size++;
+			if (size * 2 > topics.length) {
+				String[] oldTopics = topics;
+				int[] oldCounts = counts;
+				topics = new String[oldTopics.length * 2];
+				counts = new int[oldTopics.length * 2];
+				mask = topics.length - 1;
+				for (int j = 0; j < oldTopics.length; j++) {
+					if (oldTopics[j] != null) {
+						int g = oldTopics[j].hashCode() * 0x9E3779B9;
+						int k = (g ^ (g >>> 16)) & mask;
+						while (topics[k] != null) {
+							k = (k + 1) & mask;
+						}
+						topics[k] = oldTopics[j];
+						counts[k] = oldCounts[j];
+					}
+				}
+			}
+		}
+	}
+
+	public class TrendingWindow {
+		//The counters of one sliding window: a table from each topic to its counter, and a stream summary that keeps the counters in order
+		private int minutes;
+		private CounterTable counters;
+		private StreamSummary summary;
+		//The value of the RecentTopics clock when the window was last asked for
+		long lastUsed;
+
+		public TrendingWindow(int minutes) {
+
+			this.minutes = minutes;
+			clear();
+		}
+
+		public void clear() {
+
+			counters = new CounterTable();
+			summary = new StreamSummary();
+		}
+
+		public void increment(String topic, int count) {
 
-		for (int i = 0; i < arrayWeet.size(); i++) {
-			Date shortcut = arrayWeet.get(i).getDateWeeted();
-			//In order to check whether or not a weet was created on the specified date, we must compare the year, month and day of the weet to the ones provided by the specified date
-			if (shortcut.getYear() == dateOn.getYear() && shortcut.getMonth() == dateOn.getMonth() && shortcut.getDay() == dateOn.getDay()) {
-				count++;
+			TopicCounter counter = counters.get(topic);
+			if (counter == null) {
+				counter = new TopicCounter(topic);
+				counters.put(counter);
 			}
+			summary.increment(counter, count);
 		}
-		int index = 0;
-
-		Weet[] tempArray = new Weet[count];
 
-		for (int j = 0; j < arrayWeet.size(); j++) {
-			Date shortcut = arrayWeet.get(j).getDateWeeted();
-			if (shortcut.getYear() == dateOn.getYear() && shortcut.getMonth() == dateOn.getMonth() && shortcut.getDay() == dateOn.getDay()) {
-				tempArray[index] = arrayWeet.get(j);
-				index++;
+		public void decrement(String topic, int count) {
+			//A topic whose count drops to 0 is removed, so the window only holds the topics used within it
+			TopicCounter counter = counters.get(topic);
+			if (counter != null) {
+				summary.decrement(counter, count);
+				if (counter.count == 0) {
+					counters.remove(topic);
+				}
 			}
 		}
-		return tempArray;
 	}
 
-	public Weet[] getWeetsBefore(Date dateBefore) {
-		//Same concept as getWeetsContaining() method however, store the weets that were created before the specified date rather than the ones created on a specified date
-		int count = 0;
+	public class TopicCounter {
+		//A topic and its count, linked into the bucket of its count in a StreamSummary
+		String topic;
+		int count;
+		CountBucket bucket;
+		TopicCounter prev;
+		TopicCounter next;
 
-		for (int i = 0; i < arrayWeet.size(); i++) {
+		public TopicCounter(String topic) {
 
-			if (arrayWeet.get(i).getDateWeeted().before(dateBefore)) {
-				count++;
-			}
+			this.topic = topic;
+			count = 0;
 		}
-		int index = 0;
+	}
 
-		Weet[] tempArray = new Weet[count];
+	public class CountBucket {
+		//All the counters with the same count, in a doubly linked list
+		int count;
+		TopicCounter head;
+		CountBucket prev;
+		CountBucket next;
 
-		for (int j = 0; j < arrayWeet.size(); j++) {
+		public CountBucket(int count) {
 
-			if (arrayWeet.get(j).getDateWeeted().before(dateBefore)) {
-				tempArray[index] = arrayWeet.get(j);
-				index++;
+			this.count = count;
+		}
+
+		public void add(TopicCounter counter) {
+
+			counter.bucket = this;
+			counter.prev = null;
+			counter.next = head;
+			if (head != null) {
+				head.prev = counter;
 			}
+			head = counter;
 		}
-		return tempArray;
-	}
 
-	public String[] getTrending() {
-		//Create an array of strings of size 10 as the specification only asks for the top 10 most frequent strings starting with a #
-		String[] array = new String[10];
-		//Create an array of CountStringPair to iterate through it
-		CountStringPair[] array2 = arrayTrending.getArray();
-		//Iterates through the array of CountStringPair (that has been sorted by frequency by the getArray() function) and stores the first 10 strings
-		for (int i = 0; i < 10; i++) {
-			if (array2[i] != null) {
-				array[i] = array2[i].getString();
+		public void remove(TopicCounter counter) {
+
+			if (counter.prev != null) {
+				counter.prev.next = counter.next;
+			} else {
+				head = counter.next;
 			}
+			if (counter.next != null) {
+				counter.next.prev = counter.prev;
+			}
+			counter.prev = null;
+			counter.next = null;
+			counter.bucket = null;
 		}
-		return array;
 	}
 
-	private class StringArrayList {
+	public class StreamSummary {
+		//Counters grouped by count: a doubly linked list of count buckets from the lowest count to the highest, so a count moves up or down by one in O(1) and the top K are read from the highest bucket down in O(K)
+		private CountBucket lowest;
+		private CountBucket highest;
 
-		CountStringPair[] countStringArray;
-		private int capacity;
-		private int size;
+		public void increment(TopicCounter counter) {
 
-		public StringArrayList() {
+			increment(counter, 1);
+		}
 
-			this.capacity = 100;
-			this.countStringArray = new CountStringPair[capacity];
-			this.size = 0;
+		public void increment(TopicCounter counter, int delta) {
+			//Moves the counter up by delta: the buckets are walked from its own bucket up to the new count, so a count that goes up by one is still O(1)
+			int target = counter.count + delta;
+			CountBucket at = counter.bucket;
+			CountBucket next = (at == null) ? lowest : at.next;
+			while (next != null && next.count <= target) {
+				at = next;
+				next = next.next;
+			}
+			CountBucket to = (at != null && at.count == target) ? at : insertAfter(at, target);
+			if (counter.bucket != null) {
+				detach(counter);
+			}
+			to.add(counter);
+			counter.count = target;
 		}
 
-		public int size() {
+		public void decrement(TopicCounter counter, int delta) {
+			//Moves the counter down by delta (walking the buckets down from its own bucket), and takes it out of the summary once its count reaches 0
+			int target = counter.count - delta;
+			if (target <= 0) {
+				detach(counter);
+				counter.count = 0;
+				return;
+			}
+			CountBucket at = counter.bucket.prev;
+			while (at != null && at.count > target) {
+				at = at.prev;
+			}
+			CountBucket to = (at != null && at.count == target) ? at : insertAfter(at, target);
+			detach(counter);
+			to.add(counter);
+			counter.count = target;
+		}
 
-			return size;
+		public TopicCounter min() {
+
+			return lowest == null ? null : lowest.head;
 		}
 
-		public boolean add(CountStringPair topic) {
-		//iterates through our array of countStringPair to check whether or not the string stored in each element is equal to the specified string. If it is, increment the count of the weet by 1 to keep track of the frequency
-			for (int i = 0; i < size; i++) {
-				if (topic.getString().equals(countStringArray[i].getString())) {
-					countStringArray[i].addCount();
-					return true;
+		public String[] top(int k) {
+			//Returns the topics of the (at most) k highest counters, most frequent first, padded with null like getTrending()
+			String[] array = new String[k];
+			int i = 0;
+			for (CountBucket b = highest; b != null && i < k; b = b.prev) {
+				for (TopicCounter c = b.head; c != null && i < k; c = c.next) {
+					array[i] = c.topic;
+					i++;
 				}
 			}
+			return array;
+		}
 
-			if (size < capacity) {
-			//Check if there is an available slot for the new topic within the array
-			//If there is, add the topic and increment the size of the array by 1
-				countStringArray[size] = topic;
-				countStringArray[size].addCount();
-				size++;
-				return true;
-			} else if (size >= capacity) {
-			//Otherwise, transfer all the topics from the original array to a temporary array with a bigger capacity and add the topic to the last slot
-				capacity *= 2;
-				CountStringPair[] tempArray = new CountStringPair[capacity];
-				for(int i = 0; i < size; i++) {
-					tempArray[i] = countStringArray[i];
-				}
-				tempArray[size] = topic;
-				tempArray[size].addCount();
-				size++;
-				countStringArray = tempArray;
-				return true;
+		private CountBucket insertAfter(CountBucket prev, int count) {
+			//Links a new empty bucket after prev (or at the start of the list if prev is null)
+			CountBucket bucket = new CountBucket(count);
+			bucket.prev = prev;
+			bucket.next = (prev == null) ? lowest : prev.next;
+			if (bucket.next != null) {
+				bucket.next.prev = bucket;
 			} else {
-				return false;
+				highest = bucket;
+			}
+			if (prev != null) {
+				prev.next = bucket;
+			} else {
+				lowest = bucket;
 			}
+			return bucket;
 		}
 
-		public CountStringPair getCountString(CountStringPair string) {
-
-			for (int i = 0; i < size; i++) {
-				if (countStringArray[i] == string) {
-					return countStringArray[i];
+		private void detach(TopicCounter counter) {
+			//Takes the counter out of its bucket and unlinks the bucket if it is left empty
+			CountBucket bucket = counter.bucket;
+			bucket.remove(counter);
+			if (bucket.head == null) {
+				if (bucket.prev != null) {
+					bucket.prev.next = bucket.next;
+				} else {
+					lowest = bucket.next;
+				}
+				if (bucket.next != null) {
+					bucket.next.prev = bucket.prev;
+				} else {
+					highest = bucket.prev;
 				}
 			}
-			return null;
+		}
+	}
+
+	public class CounterTable {
+		//Open addressing hash table from a topic to its TopicCounter; removing a topic shifts the following entries of its run back so that no tombstones are needed
+		private TopicCounter[] counters;
+		private int size;
+		private int mask;
+
+		public CounterTable() {
+
+			counters = new TopicCounter[16];
+			mask = counters.length - 1;
+			size = 0;
 		}
 
-		public CountStringPair[] getArray() {
+		private int hash(String topic) {
 
-			return quickSortTrending(countStringArray, 0, size -1);
+			int h = topic.hashCode() * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
 		}
 
-		public String getString(int i) {
+		public int size() {
 
-			return countStringArray[i].getString();
+			return size;
 		}
 
-		public boolean isEqual(String string) {
+		public TopicCounter get(String topic) {
 
-			for (int i = 0; i < size; i++) {
-				if (countStringArray[i].getString() == string) {
-					return true;
+			int i = hash(topic);
+			while (counters[i] != null) {
+				if (counters[i].topic.equals(topic)) {
+					return counters[i];
 				}
+				i = (i + 1) & mask;
 			}
-			return false;
+			return null;
 		}
 
-		public CountStringPair[] quickSortTrending(CountStringPair[] unsortedArray, int low, int high) {
-			//Sorts the CountStringPair array by frequency (most frequent first)
-			if (unsortedArray.length == 0) {
-				return new CountStringPair[0];
+		public TopicCounter get(char[] topic, int start, int length, int hashCode) {
+			//Same as get(String) for a topic held in "length" characters of the array from position "start", where hashCode is its String.hashCode()
+			int h = hashCode * 0x9E3779B9;
+			int i = (h ^ (h >>> 16)) & mask;
+			while (counters[i] != null) {
+				if (sameTopic(counters[i].topic, topic, start, length)) {
+					return counters[i];
+				}
+				i = (i + 1) & mask;
 			}
+			return null;
+		}
 
-			int lo = low;
-			int hi = high;
-			if (low >= high) return unsortedArray;
-			int mid = unsortedArray[((lo + hi) / 2)].getCount();
-
+		public void put(TopicCounter counter) {
 
-			while (lo <= hi) {
-				while ((lo <= hi) && (unsortedArray[lo].getCount() > mid)) {
-					lo++;
-				}
-				while ((lo <= hi) && (unsortedArray[hi].getCount() < mid)) {
-					hi--;
-				}
-				if (lo <= hi) {
-					CountStringPair temp = unsortedArray[lo];
-					unsortedArray[lo] = unsortedArray[hi];
-					unsortedArray[hi] = temp;
-					lo++;
-					hi--;
+			int i = hash(counter.topic);
+			while (counters[i] != null) {
+				i = (i + 1) & mask;
+			}
+			counters[i] = counter;
+			size++;
+			if (size * 2 > counters.length) {
+				TopicCounter[] oldCounters = counters;
+				counters = new TopicCounter[oldCounters.length * 2];
+				mask = counters.length - 1;
+				size = 0;
+				for (int j = 0; j < oldCounters.length; j++) {
+					if (oldCounters[j] != null) {
+						put(oldCounters[j]);
+					}
 				}
 			}
+		}
 
-			if (low < hi) {
-			quickSortTrending(unsortedArray, low, hi);
+		public void remove(String topic) {
+
+			int i = hash(topic);
+			while (counters[i] != null && !counters[i].topic.equals(topic)) {
+				i = (i + 1) & mask;
+			}
+			if (counters[i] == null) {
+				return;
 			}
-			if (high > lo) {
-			quickSortTrending(unsortedArray, lo, high);
+			counters[i] = null;
+			size--;
+			//Moves back every later entry of the run that can no longer be reached from its home slot
+			int j = (i + 1) & mask;
+			while (counters[j] != null) {
+				int home = hash(counters[j].topic);
+				if (((j - home) & mask) >= ((j - i) & mask)) {
+					counters[i] = counters[j];
+					counters[j] = null;
+					i = j;
+				}
+				j = (j + 1) & mask;
 			}
-			return unsortedArray;
 		}
 	}
 
@@ -349,11 +2590,14 @@ public class WeetStore implements IWeetStore {
 
 		private int count;
 		private String string;
+		//The position of the pair in the TrendingHeap, or -1 if it is not one of the top topics
+		int heapIndex;
 
 		public CountStringPair(String string) {
 			//Constructor of a CountStringPair will contain a count (for frequency) and the actual string of the weet
 			count = 0;
 			this.string = string;
+			heapIndex = -1;
 		}
 
 		public int getCount() {
@@ -366,57 +2610,33 @@ public class WeetStore implements IWeetStore {
 			return string;
 		}
 
-		public void addCount() {
-			//Increments property count
-			count++;
-		}
-	}
-
-	public Weet[] quickSort(Weet[] unsortedArray, int low, int high) {
-	//Sort by date (latest weet first)
-		int lo = low;
-		int hi = high;
-		if (low >= high) return unsortedArray;
-		Date mid = unsortedArray[(lo+hi) / 2].getDateWeeted();
-
-		while (lo <= hi) {
-			while (lo <= hi && unsortedArray[lo].getDateWeeted().after(mid)) {
-				lo++;
-			}
-			while (lo <= hi && unsortedArray[hi].getDateWeeted().before(mid)) {
-				hi--;
-			}
-			if (lo <= hi) {
-				Weet temp = unsortedArray[lo];
-				unsortedArray[lo] = unsortedArray[hi];
-				unsortedArray[hi] = temp;
-				lo++;
-				hi--;
-			}
-		}
-		
-		if (low < hi) {
-		quickSort(unsortedArray, low, hi);
-		}
-		if (high > lo) {
-		quickSort(unsortedArray, lo, high);
+		public void addCount(int delta) {
+			//Increments property count by delta
+			count += delta;
 		}
-		return unsortedArray;
 	}
 
 	public class HashMap {
 
 		private KeyValuePairLinkedList[] table;
+		private int size;
+		//The table doubles in size once it holds more than 3 users for every 4 buckets
+		private static final int LOAD_NUMERATOR = 3;
+		private static final int LOAD_DENOMINATOR = 4;
 
 		public HashMap() {
 
-			this(387031);
+			this(16);
 		}
 
 		public HashMap(int size) {
-
-			table = new KeyValuePairLinkedList[size];
-			initTable();
+			//The number of buckets is rounded up to a power of two so that the hash can be reduced with a mask; buckets are only created when a user is added to them
+			int capacity = 1;
+			while (capacity < size) {
+				capacity <<= 1;
+			}
+			table = new KeyValuePairLinkedList[capacity];
+			this.size = 0;
 		}
 
 		// public int find(int uid) {
@@ -429,17 +2649,10 @@ public class WeetStore implements IWeetStore {
 		//
 		// }
 
-		private void initTable() {
-
-			for(int i = 0; i < table.length; i++) {
-				table[i] = new KeyValuePairLinkedList();
-			}
-		}
-
 		private int hash(int uid) {
-
-			int code = Math.abs(uid) % 387031;
-			return code;
+			//Multiplicative hashing mixes all the bits of the user ID (and, unlike Math.abs(), works for every int including Integer.MIN_VALUE)
+			int h = uid * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & (table.length - 1);
 		}
 
 		public void add(int uid) {
@@ -447,16 +2660,46 @@ public class WeetStore implements IWeetStore {
 			int hash_code = hash(uid);
 			int location = hash_code;
 
+			if (table[location] == null) {
+				table[location] = new KeyValuePairLinkedList();
+			}
 			table[location].add(uid);
+			size++;
+			if (size * LOAD_DENOMINATOR > table.length * LOAD_NUMERATOR) {
+				resize();
+			}
 		}
 
-		public WeetLinkedList get(int uid) {
+		private void resize() {
+			//Moves every KeyValuePair into a table with twice as many buckets
+			KeyValuePairLinkedList[] oldTable = table;
+			table = new KeyValuePairLinkedList[oldTable.length * 2];
+			for (int i = 0; i < oldTable.length; i++) {
+				if (oldTable[i] != null) {
+					for (ListElement<KeyValuePair> ptr = oldTable[i].getHead(); ptr != null; ptr = ptr.getNext()) {
+						int location = hash(ptr.getValue().getuid());
+						if (table[location] == null) {
+							table[location] = new KeyValuePairLinkedList();
+						}
+						table[location].add(ptr.getValue());
+					}
+				}
+			}
+		}
+
+		public int size() {
+
+			return size;
+		}
+
+		public SortedArrayList get(int uid) {
 
 			int hash_code = hash(uid);
 			int location = hash_code;
 
-			ListElement<KeyValuePair> ptr = table[location].head;
-
+			if (table[location] == null || table[location].get(uid) == null) {
+				return null;
+			}
 			return table[location].get(uid).getValue();
 		}
 
@@ -465,7 +2708,7 @@ public class WeetStore implements IWeetStore {
 			int hash_code = hash(uid);
 			int location = hash_code;
 
-			if (table[location].get(uid) == null) {
+			if (table[location] == null || table[location].get(uid) == null) {
 				return false;
 			}
 			if (table[location].get(uid).getuid() == uid) {
@@ -544,12 +2787,12 @@ public class WeetStore implements IWeetStore {
 	public class KeyValuePair {
 
 		private int uid;
-		private WeetLinkedList weetList;
+		private SortedArrayList weetList;
 
 		public KeyValuePair(int uid) {
-		//Constructor for the KeyValuePair consists of the userId and the data type I created WeetLinkedList
+		//Constructor for the KeyValuePair consists of the userId and the weets of the user, kept sorted by date in a small array list
 			this.uid = uid;
-			weetList = new WeetLinkedList();
+			weetList = new SortedArrayList(4);
 		}
 
 		public int getuid() {
@@ -557,135 +2800,463 @@ public class WeetStore implements IWeetStore {
 			return uid;
 		}
 
-		public WeetLinkedList getValue() {
+		public SortedArrayList getValue() {
 
 			return weetList;
 		}
 	}
 
-	public class WeetLinkedList {
-
-		private ListElement<Weet> head;
+	public class SortedArrayList {
+		//The weets are stored column by column and no Weet is kept: the date, weet ID and user ID in primitive columns, so searching and comparing weets never loads an object, and where the UTF-8 bytes of each message are in the MessageArena. A Weet (and the String of its message) is only created when it is returned
+		long[] times;
+		int[] ids;
+		int[] uids;
+		long[] messages;
+		int[] lengths;
+		private int capacity;
 		private int size;
 
-		public WeetLinkedList() {
+		public SortedArrayList() {
 
-			head = null;
-			size = 0;
+			this(100);
 		}
 
-		public boolean add(Weet weet) {
+		public SortedArrayList(int capacity) {
 
-			if(contains(weet.getId())) {
-				return false;
-			}
+			this.capacity = capacity;
+			this.times = new long[capacity];
+			this.ids = new int[capacity];
+			this.uids = new int[capacity];
+			this.messages = new long[capacity];
+			this.lengths = new int[capacity];
+			this.size = 0;
+		}
 
-			ListElement<Weet> new_element = new ListElement<>(weet);
-			new_element.setNext(head);
-			head = new_element;
-			size++;
-			return true;
+		private void grow(int newCapacity) {
+
+			capacity = newCapacity;
+			times = Arrays.copyOf(times, capacity);
+			ids = Arrays.copyOf(ids, capacity);
+			uids = Arrays.copyOf(uids, capacity);
+			messages = Arrays.copyOf(messages, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
 		}
 
-		public int size() {
+		private void set(int i, Weet weet, long message, int length) {
 
-			return size;
+			times[i] = weet.getDateWeeted().getTime();
+			ids[i] = weet.getId();
+			uids[i] = weet.getUserId();
+			messages[i] = message;
+			lengths[i] = length;
 		}
 
-		public ListElement<Weet> getHead() {
+		private void move(int from, int to, int count) {
 
-			return head;
+			System.arraycopy(times, from, times, to, count);
+			System.arraycopy(ids, from, ids, to, count);
+			System.arraycopy(uids, from, uids, to, count);
+			System.arraycopy(messages, from, messages, to, count);
+			System.arraycopy(lengths, from, lengths, to, count);
 		}
 
-		public Weet get(int wid) {
+		public Weet weet(int i) {
+			//Creates the weet at position i from the columns, decoding its message out of the arena
+			return new Weet(ids[i], uids[i], arena.string(messages[i], lengths[i]), new Date(times[i]));
+		}
 
-			ListElement<Weet> temp = head;
+		public int size() {
 
-			while(temp != null) {
-				if(temp.getValue().getId() == wid) {
-					return temp.getValue();
+			return size;
+		}
+
+		public void insert(Weet weet, long message, int length) {
+			//Keeps the array list sorted by date (oldest first, then by weet ID) so that the latest weets are at the end
+			if (size == capacity) {
+				grow(capacity * 2);
+			}
+			//Weets normally arrive in date order, so the new weet is usually just appended
+			long date = weet.getDateWeeted().getTime();
+			int id = weet.getId();
+			if (size == 0 || !isNewerThan(size - 1, date, id)) {
+				set(size, weet, message, length);
+				size++;
+				return;
+			}
+			//Otherwise binary search for the first weet that is newer than the new one and shift the newer weets one slot to the right
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (isNewerThan(mid, date, id)) {
+					hi = mid;
+				} else {
+					lo = mid + 1;
 				}
+			}
+			move(lo, lo + 1, size - lo);
+			set(lo, weet, message, length);
+			size++;
+		}
 
-				temp = temp.getNext();
+		public void insertAll(Weet[] sorted, long[] sortedMessages, int[] sortedLengths) {
+			//Merges an array of weets that is already sorted (oldest first) into the array list in one pass, filling the array from the end so that no weet is moved more than once
+			if (size + sorted.length > capacity) {
+				grow(Math.max(capacity * 2, size + sorted.length));
+			}
+			int i = size - 1;
+			int j = sorted.length - 1;
+			int k = size + sorted.length - 1;
+			while (j >= 0) {
+				if (i >= 0 && isNewerThan(i, sorted[j].getDateWeeted().getTime(), sorted[j].getId())) {
+					move(i, k, 1);
+					i--;
+				} else {
+					set(k, sorted[j], sortedMessages[j], sortedLengths[j]);
+					j--;
+				}
+				k--;
 			}
+			size += sorted.length;
+		}
 
-			return null;
+		public void removeFirst(int count) {
+			//Removes the "count" oldest weets
+			if (count == 0) {
+				return;
+			}
+			move(count, 0, size - count);
+			size -= count;
 		}
 
-		public boolean contains(int wid) {
+		public int matches(int i, byte[] query, char[] folded) {
+			//Checks whether the message of the weet at position i contains the query (its lower case UTF-8 bytes, or its lower case characters): 1 if it does, 0 if it does not
+			int found = arena.contains(messages[i], lengths[i], query);
+			if (found >= 0) {
+				return found;
+			}
+			return containsFolded(arena.string(messages[i], lengths[i]), folded) ? 1 : 0;
+		}
 
-			ListElement<Weet> temp = head;
+		public void copyDescending(int end, int count, Weet[] tempArray, int index) {
+			//Copies "count" weets latest first into tempArray from position "index", starting just below position "end" of the (oldest first) array
+			for (int i = 0; i < count; i++) {
+				tempArray[index + i] = weet(end - 1 - i);
+			}
+		}
 
-			while(temp != null)	{
-				if(temp.getValue().getId() == wid) {
-					return true;
-				}
+		private boolean isNewerThan(int i, long date, int id) {
+			//The recency order of isNewer(), read from the columns: whether the weet at position i is newer than the specified date and weet ID
+			return times[i] > date || (times[i] == date && ids[i] > id);
+		}
 
-				temp = temp.getNext();
+		public int countBefore(long date, int id) {
+			//Binary searches for the number of weets that come before the specified date and weet ID (older date, or same date and lower ID)
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (times[mid] < date || (times[mid] == date && ids[mid] < id)) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
 			}
-			return false;
+			return lo;
 		}
 	}
 
+	public class WeetIndex {
+		//Open addressing hash table with linear probing from a primitive weet ID to the whole row of the weet (user ID, date and where its message is in the arena), so a weet is built from one probe, no Integer objects are created and a lookup needs no other allocation
+		private int[] keys;
+		int[] uids;
+		long[] times;
+		long[] messages;
+		int[] lengths;
+		private boolean[] used;
+		private int size;
+		private int mask;
 
-	public class SortedArrayList {
+		public WeetIndex() {
 
-		Weet[] weetArray;
-		private int capacity;
-		private int size;
+			keys = new int[1024];
+			uids = new int[1024];
+			times = new long[1024];
+			messages = new long[1024];
+			lengths = new int[1024];
+			used = new boolean[1024];
+			mask = keys.length - 1;
+			size = 0;
+		}
 
-		public SortedArrayList() {
+		private int hash(int wid) {
 
-			this.capacity = 100;
-			this.weetArray = new Weet[capacity];
-			this.size = 0;
+			int h = wid * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		public int find(int wid) {
+			//Returns the slot of the weet ID (its row is uids[slot], times[slot], messages[slot] and lengths[slot]), or -1 if it is not in the table
+			int i = hash(wid);
+			while (used[i]) {
+				if (keys[i] == wid) {
+					return i;
+				}
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		public void put(int wid, int uid, long time, long message, int length) {
+			//Adds the weet ID (or replaces the row of the same ID) and keeps the table at most half full
+			int i = hash(wid);
+			while (used[i] && keys[i] != wid) {
+				i = (i + 1) & mask;
+			}
+			if (!used[i]) {
+				keys[i] = wid;
+				used[i] = true;
+				size++;
+			}
+			uids[i] = uid;
+			times[i] = time;
+			messages[i] = message;
+			lengths[i] = length;
+			if (size * 2 > keys.length) {
+				resize();
+			}
+		}
+
+		public void remove(int wid) {
+			//Removes the weet ID and moves back every later entry of its run that could no longer be reached from its home slot, so that no tombstones are needed
+			int i = hash(wid);
+			while (used[i] && keys[i] != wid) {
+				i = (i + 1) & mask;
+			}
+			if (!used[i]) {
+				return;
+			}
+			used[i] = false;
+			size--;
+			int j = (i + 1) & mask;
+			while (used[j]) {
+				int home = hash(keys[j]);
+				if (((j - home) & mask) >= ((j - i) & mask)) {
+					keys[i] = keys[j];
+					uids[i] = uids[j];
+					times[i] = times[j];
+					messages[i] = messages[j];
+					lengths[i] = lengths[j];
+					used[i] = true;
+					used[j] = false;
+					i = j;
+				}
+				j = (j + 1) & mask;
+			}
+		}
+
+		private void resize() {
+
+			int[] oldKeys = keys;
+			int[] oldUids = uids;
+			long[] oldTimes = times;
+			long[] oldMessages = messages;
+			int[] oldLengths = lengths;
+			boolean[] oldUsed = used;
+			keys = new int[oldKeys.length * 2];
+			uids = new int[oldKeys.length * 2];
+			times = new long[oldKeys.length * 2];
+			messages = new long[oldKeys.length * 2];
+			lengths = new int[oldKeys.length * 2];
+			used = new boolean[oldKeys.length * 2];
+			mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldUsed[i]) {
+					int j = hash(oldKeys[i]);
+					while (used[j]) {
+						j = (j + 1) & mask;
+					}
+					keys[j] = oldKeys[i];
+					uids[j] = oldUids[i];
+					times[j] = oldTimes[i];
+					messages[j] = oldMessages[i];
+					lengths[j] = oldLengths[i];
+					used[j] = true;
+				}
+			}
 		}
 
 		public int size() {
 
 			return size;
 		}
+	}
+
+	public class TrigramIndex {
+		//Inverted index: open addressing hash table from a trigram (3 lower case characters packed into a long) to the posting list of the weets whose message contains it
+		private long[] keys;
+		private PostingList[] lists;
+		private int size;
+		private int mask;
+
+		public TrigramIndex() {
+
+			keys = new long[1024];
+			lists = new PostingList[1024];
+			mask = keys.length - 1;
+			size = 0;
+		}
 
-		public boolean add(Weet weet) {
+		private int hash(long key) {
 
-			if (size < capacity) {
-				weetArray[size] = weet;
-				size++;
-				return true;
-			} else if (size >= capacity) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h >>> 32) & mask;
+		}
+
+		public void add(long key, long date, int id) {
+			//Adds the weet with that date and ID to the posting list of the (lower case) trigram
+			getOrCreate(key).add(date, id);
+		}
+
+		public PostingList[] lists(char[] folded) {
+			//Returns the posting lists of every trigram of the (already lower case) query, shortest first, or null if one of the trigrams is not in any message
+			int n = folded.length - 2;
+			PostingList[] found = new PostingList[n];
+			for (int i = 0; i < n; i++) {
+				found[i] = get(trigram(folded[i], folded[i + 1], folded[i + 2]));
+				if (found[i] == null) {
+					return null;
+				}
+			}
+			sortBySize(found);
+			return found;
+		}
+
+		public void removeBefore(long time) {
+			//Takes the weets created before the time (the ones that have just been archived, which are the oldest of every posting list) off the front of each posting list, and rebuilds the table without the trigrams that are left without any weet
+			long[] oldKeys = keys;
+			PostingList[] oldLists = lists;
+			int live = 0;
+			for (int i = 0; i < oldLists.length; i++) {
+				if (oldLists[i] != null) {
+					oldLists[i].removeBefore(time);
+					if (oldLists[i].size() > 0) {
+						live++;
+					}
+				}
+			}
+			int capacity = 1024;
+			while (live * 2 > capacity) {
 				capacity *= 2;
-				Weet tempArray[] = new Weet[capacity];
-				for(int i = 0; i < size; i++) {
-					tempArray[i] = weetArray[i];
+			}
+			keys = new long[capacity];
+			lists = new PostingList[capacity];
+			mask = capacity - 1;
+			size = live;
+			for (int i = 0; i < oldLists.length; i++) {
+				if (oldLists[i] != null && oldLists[i].size() > 0) {
+					int j = hash(oldKeys[i]);
+					while (lists[j] != null) {
+						j = (j + 1) & mask;
+					}
+					keys[j] = oldKeys[i];
+					lists[j] = oldLists[i];
 				}
-				tempArray[size] = weet;
-				size++;
-				weetArray = tempArray;
-				return true;
-			} else {
-				return false;
 			}
 		}
 
-		public Weet getId(int id) {
+		public PostingList get(long key) {
 
-			for (int i = 0; i < size; i++) {
-				if (weetArray[i].getId() == id) {
-					return weetArray[i];
+			int i = hash(key);
+			while (lists[i] != null) {
+				if (keys[i] == key) {
+					return lists[i];
 				}
+				i = (i + 1) & mask;
 			}
 			return null;
 		}
 
-		public Weet get(int i) {
+		private PostingList getOrCreate(long key) {
 
-			return weetArray[i];
+			int i = hash(key);
+			while (lists[i] != null) {
+				if (keys[i] == key) {
+					return lists[i];
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			lists[i] = new PostingList();
+			size++;
+			PostingList list = lists[i];
+			if (size * 2 > keys.length) {
+				resize();
+			}
+			return list;
+		}
+
+		private void resize() {
+
+			long[] oldKeys = keys;
+			PostingList[] oldLists = lists;
+			keys = new long[oldKeys.length * 2];
+			lists = new PostingList[oldKeys.length * 2];
+			mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldLists[i] != null) {
+					int j = hash(oldKeys[i]);
+					while (lists[j] != null) {
+						j = (j + 1) & mask;
+					}
+					keys[j] = oldKeys[i];
+					lists[j] = oldLists[i];
+				}
+			}
 		}
+	}
 
-		public boolean isEqual(int id) {
+	public class Intersection {
+		//Walks the posting lists of every trigram of a query in one place (the heap, or one segment) together from the latest weet backwards, with one pointer each; the shortest list drives the walk, and it stops at every weet that is in all of them
+		private PostingList[] lists;
+		private int[] pointers;
+		//The segment the posting lists came from, or -1 for the text index of the heap
+		int segment;
+		//The date and weet ID of the current candidate
+		long date;
+		int id;
+
+		public Intersection(PostingList[] lists, int segment) {
+
+			this.lists = lists;
+			this.segment = segment;
+			pointers = new int[lists.length];
+			pointers[0] = lists[0].size();
+			for (int j = 1; j < lists.length; j++) {
+				pointers[j] = lists[j].size() - 1;
+			}
+		}
 
-			for (int i = 0; i < size; i++) {
-				if (weetArray[i].getId() == id) {
+		public boolean next() {
+			//Moves to the next (older) weet that is in every posting list, or returns false once the shortest list is used up
+			PostingList driver = lists[0];
+			while (pointers[0] > 0) {
+				pointers[0]--;
+				long candidateDate = driver.date(pointers[0]);
+				int candidateId = driver.id(pointers[0]);
+				boolean inAll = true;
+				for (int j = 1; j < lists.length && inAll; j++) {
+					PostingList list = lists[j];
+					int p = pointers[j];
+					while (p >= 0 && (list.date(p) > candidateDate || (list.date(p) == candidateDate && list.id(p) > candidateId))) {
+						p--;
+					}
+					pointers[j] = p;
+					inAll = p >= 0 && list.date(p) == candidateDate && list.id(p) == candidateId;
+				}
+				if (inAll) {
+					date = candidateDate;
+					id = candidateId;
 					return true;
 				}
 			}
@@ -693,6 +3264,110 @@ public class WeetStore implements IWeetStore {
 		}
 	}
 
+	public class PostingList {
+		//The weets containing one trigram, stored as parallel arrays of dates and weet IDs in the same order as the array list of weets (oldest first). The posting list of a trigram in a segment is read straight from the mapping instead (12 bytes per weet: the date and the weet ID), and cannot be changed
+		long[] dates;
+		int[] ids;
+		private int size;
+		private ByteBuffer buffer;
+		private int start;
+
+		public PostingList() {
+
+			dates = new long[4];
+			ids = new int[4];
+			size = 0;
+		}
+
+		public PostingList(ByteBuffer buffer, int start, int size) {
+			//A view of the "size" entries of a segment from byte "start" of its mapping
+			this.buffer = buffer;
+			this.start = start;
+			this.size = size;
+		}
+
+		public int size() {
+
+			return size;
+		}
+
+		public long date(int i) {
+
+			return buffer == null ? dates[i] : buffer.getLong(start + i * 12);
+		}
+
+		public int id(int i) {
+
+			return buffer == null ? ids[i] : buffer.getInt(start + i * 12 + 8);
+		}
+
+		public int countBefore(long time) {
+			//Binary searches for the number of weets created before the time, which are all at the front of the list
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (dates[mid] < time) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		public void removeBefore(long time) {
+			//Removes the weets created before the time, which are all at the front of the list, and gives back the memory of a list that has shrunk to less than a quarter of its arrays
+			int lo = countBefore(time);
+			if (lo == 0) {
+				return;
+			}
+			size -= lo;
+			if (dates.length > 4 && size * 4 < dates.length) {
+				int capacity = Math.max(4, size * 2);
+				long[] tempDates = new long[capacity];
+				int[] tempIds = new int[capacity];
+				System.arraycopy(dates, lo, tempDates, 0, size);
+				System.arraycopy(ids, lo, tempIds, 0, size);
+				dates = tempDates;
+				ids = tempIds;
+			} else {
+				System.arraycopy(dates, lo, dates, 0, size);
+				System.arraycopy(ids, lo, ids, 0, size);
+			}
+		}
+
+		public void add(long date, int id) {
+			//Weets normally arrive in date order, so they are appended; a late weet is binary searched into place, and a weet that is already in the list (a trigram that appears twice in one message) is ignored
+			int pos = size;
+			if (size > 0 && (dates[size - 1] > date || (dates[size - 1] == date && ids[size - 1] >= id))) {
+				int lo = 0;
+				int hi = size;
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (dates[mid] < date || (dates[mid] == date && ids[mid] < id)) {
+						lo = mid + 1;
+					} else {
+						hi = mid;
+					}
+				}
+				if (lo < size && dates[lo] == date && ids[lo] == id) {
+					return;
+				}
+				pos = lo;
+			}
+			if (size == ids.length) {
+				dates = Arrays.copyOf(dates, size * 2);
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			System.arraycopy(dates, pos, dates, pos + 1, size - pos);
+			System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+			dates[pos] = date;
+			ids[pos] = id;
+			size++;
+		}
+	}
+
 	public class ListElement<E> {
 
 		private final E value;